@@ -24,6 +24,7 @@
 package com.mchange.v2.ssim;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 
 abstract class AbstractImageData extends AbstractImageSpec implements ImageData
 {
@@ -45,4 +46,16 @@ abstract class AbstractImageData extends AbstractImageSpec implements ImageData
 
     public int getContentLength()
     { return content_length; }
+
+    public String getETag()
+    { return null; }
+
+    public File getFile()
+    { return null; }
+
+    public FileChannel getChannel() throws IOException
+    { return null; }
+
+    public void release()
+    {}
 }
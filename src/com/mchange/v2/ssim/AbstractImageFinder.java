@@ -27,7 +27,9 @@ import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.imageio.*;
 import com.mchange.v2.async.*;
 import com.mchange.v1.io.InputStreamUtils;
@@ -37,20 +39,64 @@ abstract class AbstractImageFinder implements ImageFinder
 {
     final static int BUFFER_SZ = (32 * 1024);
 
+    final static int MAX_REMEMBERED_FAILURES = 10000;
+
     SsimPersistentStore store;
 
+    OriginFetcher fetcher;
+
+    ImageScaler scaler;
+
     Set pendingStores = Collections.synchronizedSet( new HashSet() );
 
     AsynchronousRunner runner = new RoundRobinAsynchronousRunner( 3, true );
 
-    AbstractImageFinder( SsimPersistentStore store )
-    { this.store = store; }
+    // regenerates stale images in the background, when we serve them stale
+    AsynchronousRunner revalidationRunner = new RoundRobinAsynchronousRunner( 1, true );
+
+    // MT: thread-safe, complete keys of images queued or being regenerated in the background
+    Set pendingRevalidations = Collections.synchronizedSet( new HashSet() );
+
+    // MT: thread-safe, bounds the number of images we decode, scale, and encode at once
+    Semaphore scalePermits;
+
+    // MT: thread-safe, decoded originals shared across target sizes
+    DecodedImageCache decodedImageCache;
+
+    // MT: protected by its own lock
+    //     uids -> PendingOriginals, fetching and buffering original image data
+    Map pendingOriginals = new HashMap();
+
+    // MT: thread-safe, uids we recently failed to fetch or decode
+    NegativeCache negativeCache = new NegativeCache( MAX_REMEMBERED_FAILURES );
+
+    // MT: unchanging after constructor
+    boolean stream_renders;
+
+    /**
+     * @param decoded_cache_size the number of bytes of decoded original images we should 
+     *                           keep in memory. If less than or equal to zero, we keep none.
+     * @param stream_renders     if true, newly scaled images are returned unencoded, as
+     *                           StreamingImageData, to be encoded only once they are about to be sent
+     */
+    AbstractImageFinder( SsimPersistentStore store, OriginFetcher fetcher, ImageScaler scaler, int max_concurrency, long decoded_cache_size, boolean stream_renders )
+    { 
+	this.store             = store; 
+	this.fetcher           = fetcher;
+	this.scaler            = scaler;
+	this.scalePermits      = new Semaphore( max_concurrency, true );
+	this.decodedImageCache = new DecodedImageCache( decoded_cache_size );
+	this.stream_renders    = stream_renders;
+    }
 
     public void close() throws SsimException
     {
+	Exception e0 = ClosableResourceUtils.attemptClose( revalidationRunner );
 	Exception e1 = ClosableResourceUtils.attemptClose( runner );
 	Exception e2 = ClosableResourceUtils.attemptClose( store );
-	if ( e1 != null)
+	if ( e0 != null)
+	    throw new SsimException( e0 );
+	else if ( e1 != null)
 	    throw new SsimException( e1 );
 	else if ( e2 != null )
 	    throw new SsimException( e2 );
@@ -59,44 +105,53 @@ abstract class AbstractImageFinder implements ImageFinder
     public ImageData find( String uid, String mimeType, int width, int height, boolean preserve_aspect_ratio  )
 	throws SsimException
     {
+	// if we just failed, we fail again right away
+	ImageUnavailableException failed = negativeCache.check( uid );
+	if ( failed != null )
+	    throw failed;
+
+	// if we have to read the original image's header to learn its size,
+	// we hold onto the reader, in case we have to decode the image too
+	OriginalImageReader originalReader = null;
+
+	// unless we serve it, we must release it, it may hold a connection to its origin
+	ImageData raw = null;
 	try
 	    {
 		ImageDataKey  key = ImageDataKey.findKey( uid, mimeType, width, height );
 		ImageDataKey  completeKey;
 		ImageData     out;
 
-		BufferedImage originalImage = null;
 		ImageSpec     origSpec      = null;
 		
-		ImageData     raw           = rawImageDataForUid( key.getUid() ); //does not find width & height
+		// if someone is already fetching the original, we'll take what they get
+		raw = pendingOriginal( key.getUid() );
+		if ( raw == null )
+		    raw = originImageData( key.getUid() ); //does not find width & height
 
 		// a short path...
-		if ( key.getWidth() < 0 && key.getHeight() < 0 && !cacheUnmodified( key.getUid()) )
+		if ( canServeRaw( key, raw ) )
 		    {
-			String keyMimeType = key.getMimeType(); 
-			//System.err.println( key );
-			//System.err.println( keyMimeType + "   " + raw.getMimeType() );
-			if (keyMimeType == null || keyMimeType.equals( raw.getMimeType() )) // we can return the raw image data...
-			    return raw;                                                     // size undefined and mimeType matches
-		    };
+			out = raw;
+			raw = null; // our caller will release it
+			return out;
+		    }
+
+		// won't touch raw until we need it, and then will share a single fetch
+		// with any concurrent requests for the same uid, in any size
+		SingleFlightImageData original = new SingleFlightImageData( key.getUid(), raw );
+		originalReader = new OriginalImageReader( original );
 
 		if ( preserve_aspect_ratio || ! key.isComplete() )
 		    {
 			origSpec = store.originalImageSpec( key );
 			if ( origSpec == null )
 			    {
-				InputStream is = null;
-				try
-				    {
-					is = raw.getInputStream();
-					originalImage = ImageIO.read( is );
-					origSpec = new ConcreteImageSpec( raw.getMimeType(), 
-									  raw.getTimestamp(),
-									  originalImage.getWidth( null ),
-									  originalImage.getHeight( null ) );
-				    }
-				finally
-				    { InputStreamUtils.attemptClose( is ); }
+				// reads only the image header, no pixels
+				origSpec = new ConcreteImageSpec( raw.getMimeType(), 
+								  raw.getTimestamp(),
+								  originalReader.getWidth(),
+								  originalReader.getHeight() );
 			    }
 
 			completeKey = SsimUtils.findCompleteKey( key, origSpec, preserve_aspect_ratio );
@@ -104,75 +159,768 @@ abstract class AbstractImageFinder implements ImageFinder
 		else
 		    completeKey = key;
 		
+		// decided up front, so nothing can fail between retrieving
+		// an image and either returning or releasing it
+		boolean may_serve_stale = mayServeStale( key.getUid(), raw );
+
+		// a first look, without waiting on anyone. if we find nothing we can serve,
+		// we're about to scale, so we read an HTTP original before we wait on the
+		// key's monitor, lest we hold a connection to its origin while we do
+		if (! pendingStores.contains( completeKey ) )
+		    {
+			out = servableImage( key, completeKey, raw, may_serve_stale );
+			if ( out != null )
+			    return out;
+			readIfConnected( raw, original );
+		    }
+
 		synchronized ( completeKey )
 		    {
 			while ( pendingStores.contains( completeKey ) )
 			    completeKey.wait();
 
 			//System.err.println("completeKey: " + completeKey);
-			out = store.retrieve( completeKey );
-			//System.err.println("out file: " + (out == null ? "null" : "" + out.getTimestamp()) +
-			//		   " raw file: " + (raw == null ? "null" : "" + raw.getTimestamp()));
-			if ( out != null && ( out.getTimestamp() > raw.getTimestamp() ) )
-			    {
-				//System.err.println("returning prescaled image: " + completeKey);
-				return out;
-			    }
+			out = servableImage( key, completeKey, raw, may_serve_stale );
+			if ( out != null )
+			    return out;
 			else //we have to recreate and store this...
 			    {
 				//System.err.println("(re)creating and storing image: " + completeKey);
+				readIfConnected( raw, original ); // before we wait for a scale permit
+
 				String outputMimeType = completeKey.getMimeType();
-				byte[] bytes;
+				ImageBuffer bytes;
 				
-				if ( originalImage != null )
-				    bytes = SsimUtils.bufferedImageToScaledBytes( originalImage, 
-										  outputMimeType,
-										  completeKey.getWidth(),
-										  completeKey.getHeight() );
-				else
+				if ( origSpec == null )
+				    origSpec = store.originalImageSpec( key );
+				if ( origSpec == null )
+				    origSpec = new ConcreteImageSpec( raw.getMimeType(), 
+								      raw.getTimestamp(),
+								      originalReader.getWidth(),
+								      originalReader.getHeight() );
+
+				BufferedImage decoded = decode( raw, origSpec, completeKey, originalReader );
+				BufferedImage scaled;
+				scalePermits.acquire();
+				try
 				    {
-					InputStream is = null;
-					try
-					    {
-						is = raw.getInputStream();
-						bytes = SsimUtils.streamToScaledBytes( is, 
-										       outputMimeType,
-										       completeKey.getWidth(),
-										       completeKey.getHeight() );
-					    }
-					finally
-					    { InputStreamUtils.attemptClose( is ); }
+					scaled = scale( decoded, completeKey );
+					if (! stream_renders )
+					    bytes = SsimUtils.imageToBuffer( scaled, outputMimeType );
+					else
+					    bytes = null; // our caller will encode as it writes
 				    }
+				finally
+				    { scalePermits.release(); }
+
+				if ( stream_renders )
+				    {
+					// others wait for the store that follows the encode, 
+					// and the StreamingImageData takes responsibility for it
+					pendingStores.add( completeKey );
+					return new StreamingImageData( completeKey, scaled, origSpec );
+				    }
+
+				// one reference for the store, one for our caller
+				bytes.retain();
 				Runnable imageStoreTask = new ImageStoreTask( completeKey, bytes, origSpec );
 				pendingStores.add( completeKey );
 				runner.postRunnable( imageStoreTask );
-				return new BufferedImageData( outputMimeType, 
-							      bytes,
-							      System.currentTimeMillis(), 
-							      completeKey.getWidth(), 
-							      completeKey.getHeight() );
+				return new ImageBufferData( outputMimeType, 
+							    bytes,
+							    System.currentTimeMillis(), 
+							    completeKey.getWidth(), 
+							    completeKey.getHeight() );
 			    }
 		    }
 	    }
-	catch ( SsimException e )
+	catch ( Exception e )
 	    {
 		e.printStackTrace();
-		throw e;
+		throw remember( uid, e );
+	    }
+	finally
+	    {
+		if ( originalReader != null )
+		    originalReader.close();
+		if ( raw != null )
+		    raw.release();
+	    }
+    }
+
+    public ImageData findCached( String uid, String mimeType, int width, int height, boolean preserve_aspect_ratio  )
+	throws SsimException
+    {
+	ImageUnavailableException failed = negativeCache.check( uid );
+	if ( failed != null )
+	    throw failed;
+
+	ImageData raw = null;
+	try
+	    {
+		ImageDataKey  key = ImageDataKey.findKey( uid, mimeType, width, height );
+		ImageDataKey  completeKey;
+
+		// we can't contact a remote origin here, so we go by a fresh record of it, or
+		// else by what a local origin says. remote originals go to our workers
+		OriginRecord record = store.originRecord( key.getUid() );
+		if ( record != null && record.isFresh( System.currentTimeMillis(), defaultOriginMaxAge( key.getUid() ) ) )
+		    raw = new RecordedImageData( key.getUid(), record );
+		else
+		    raw = localOriginImageData( key.getUid() );
+		if ( raw == null )
+		    return null;
+
+		// serving the original may mean fetching it
+		if ( canServeRaw( key, raw ) )
+		    return null;
+
+		if ( preserve_aspect_ratio || ! key.isComplete() )
+		    {
+			ImageSpec origSpec = store.originalImageSpec( key );
+			if ( origSpec == null ) // we'd have to read the image to find out its size
+			    return null;
+			completeKey = SsimUtils.findCompleteKey( key, origSpec, preserve_aspect_ratio );
+		    }
+		else
+		    completeKey = key;
+
+		// we don't wait around for pending stores, but we don't
+		// want to serve the stale image they are replacing either
+		if ( pendingStores.contains( completeKey ) )
+		    return null;
+
+		return servableImage( key, completeKey, raw, mayServeStale( key.getUid(), raw ) );
 	    }
 	catch ( Exception e )
 	    {
 		e.printStackTrace();
-		throw new SsimException( e );
+		throw remember( uid, e );
+	    }
+	finally
+	    {
+		if ( raw != null )
+		    raw.release();
+	    }
+    }
+
+    /**
+     * If e reports (or was caused by) a failure to fetch or decode uid's original,
+     * we remember the failure for a while, and return it, so our callers can
+     * report the most meaningful status. Failures to get past our own limits say
+     * nothing about the image, so we report those, but don't remember them.
+     */
+    private SsimException remember( String uid, Exception e )
+    {
+	ImageUnavailableException unavailable = SsimUtils.findUnavailableCause( e );
+	if ( unavailable != null )
+	    {
+		if ( unavailable.getStatus() != ImageUnavailableException.SERVICE_UNAVAILABLE )
+		    {
+			try
+			    { negativeCache.put( uid, unavailable, failureTtl( uid, unavailable.getStatus() ) * 1000 ); }
+			catch ( Exception e2 ) // we just won't remember
+			    { e2.printStackTrace(); }
+		    }
+		return unavailable;
+	    }
+	else if ( e instanceof SsimException )
+	    return (SsimException) e;
+	else
+	    return new SsimException( e );
+    }
+
+    // if the size is undefined and the mimeType matches, we can just return the raw image data
+    private boolean canServeRaw( ImageDataKey key, ImageData raw ) throws Exception
+    {
+	if ( key.getWidth() < 0 && key.getHeight() < 0 && !cacheUnmodified( key.getUid()) )
+	    {
+		String keyMimeType = key.getMimeType(); 
+		//System.err.println( key );
+		//System.err.println( keyMimeType + "   " + raw.getMimeType() );
+		return (keyMimeType == null || keyMimeType.equals( raw.getMimeType() ));
+	    }
+	else
+	    return false;
+    }
+
+    /**
+     * @return raw image data for uid, from our record of its origin if that is still
+     *         fresh, or if the origin confirms that it is still valid, otherwise from
+     *         rawImageDataForUid(...). We update the record, if it would be worth keeping.
+     */
+    private ImageData originImageData( String uid ) throws Exception
+    {
+	long now             = System.currentTimeMillis();
+	long default_max_age = defaultOriginMaxAge( uid );
+
+	OriginRecord record = store.originRecord( uid );
+	if ( record != null && record.isFresh( now, default_max_age ) )
+	    return new RecordedImageData( uid, record );
+
+	// if we have validators, the origin need only tell us that nothing has changed
+	ImageData raw = rawImageDataForUid( uid, ( record != null && record.hasValidators() ? record : null ) );
+	if (! ( raw instanceof OriginFetcher.Response ) )
+	    return raw;
+
+	OriginFetcher.Response response = (OriginFetcher.Response) raw;
+	long max_age = response.getMaxAge();
+	if ( response.isNotModified() )
+	    {
+		// a 304 needn't repeat the Cache-Control it came with the first time
+		record = record.revalidated( now, ( max_age >= 0 ? max_age : record.getMaxAge() ) );
+		if ( record.isFresh( now, default_max_age ) ) // otherwise we'd revalidate next time regardless
+		    storeOriginRecord( uid, record );
+		return new RecordedImageData( uid, record );
+	    }
+	else
+	    {
+		OriginRecord fetched = new OriginRecord( response.getMimeType(), 
+							 response.getTimestamp(), 
+							 now, 
+							 max_age, 
+							 response.getValidatorETag(), 
+							 response.getValidatorLastModified(), 
+							 now );
+		if ( fetched.hasValidators() || fetched.isFresh( now, default_max_age ) )
+		    storeOriginRecord( uid, fetched );
+		return raw;
+	    }
+    }
+
+    private void storeOriginRecord( String uid, OriginRecord record )
+    {
+	try
+	    { store.storeOriginRecord( uid, record ); }
+	catch ( SsimException e ) //we'll just have to ask the origin again next time
+	    { e.printStackTrace(); }
+    }
+
+    /**
+     * @return the stored image for completeKey, if it is fresh, or if it's stale but
+     *         may be served while we regenerate it (which we schedule), otherwise null.
+     *         We release anything we find but don't return.
+     */
+    private ImageData servableImage( ImageDataKey key, ImageDataKey completeKey, ImageData raw, boolean may_serve_stale ) throws SsimException
+    {
+	ImageData out = store.retrieve( completeKey );
+	//System.err.println("out file: " + (out == null ? "null" : "" + out.getTimestamp()) +
+	//		   " raw file: " + (raw == null ? "null" : "" + raw.getTimestamp()));
+	if ( isFresh( out, raw ) )
+	    return out;
+	else if ( out != null && may_serve_stale )
+	    {
+		// nobody waits, the new image will replace this one when it's ready
+		scheduleRevalidation( key, completeKey );
+		return out;
+	    }
+	else
+	    {
+		if ( out != null )
+		    out.release();
+		return null;
+	    }
+    }
+
+    /**
+     * @return raw image data for uid if its origin is local (a file, a resource of
+     *         the web application, an entry in a jar...), so that learning its timestamp
+     *         is cheap, otherwise null
+     */
+    private ImageData localOriginImageData( String uid ) throws Exception
+    {
+	URL u = urlForUid( uid );
+	return ( u == null || OriginFetcher.isRemote( u ) ? null : fetcher.fetch( uid, u, null ) );
+    }
+
+    private static boolean isFresh( ImageData out, ImageData raw )
+    { return out != null && ( out.getTimestamp() > raw.getTimestamp() ); }
+
+    // the image we have has been stale since its original was modified
+    private boolean mayServeStale( String uid, ImageData raw ) throws Exception
+    {
+	long max_staleness = maxStaleness( uid );
+	long modified      = raw.getTimestamp();
+	return max_staleness > 0 && modified > 0 && System.currentTimeMillis() - modified <= max_staleness * 1000;
+    }
+
+    private void scheduleRevalidation( ImageDataKey key, ImageDataKey completeKey )
+    {
+	if ( pendingRevalidations.add( completeKey ) )
+	    revalidationRunner.postRunnable( new RevalidationTask( key, completeKey ) );
+    }
+
+    private BufferedImage decode( ImageData raw, ImageSpec origSpec, ImageDataKey completeKey, OriginalImageReader originalReader ) throws Exception
+    {
+	return decodedImageCache.find( completeKey.getUid(),
+				       raw.getTimestamp(),
+				       origSpec.getWidth(),
+				       origSpec.getHeight(),
+				       completeKey.getWidth(),
+				       completeKey.getHeight(),
+				       new PermittedDecoder( originalReader ) );
+    }
+
+    // callers should hold a scale permit
+    private BufferedImage scale( BufferedImage decoded, ImageDataKey completeKey ) throws SsimException
+    {
+	return scaler.scale( decoded, 
+			     completeKey.getWidth(),
+			     completeKey.getHeight(),
+			     SsimUtils.imageType( decoded, completeKey.getMimeType() ) );
+    }
+
+    /**
+     * @return image data for uid that shares a fetch already in progress, if there
+     *         is one, null otherwise. We don't wait for the fetch, as we may not need
+     *         the bytes at all, if a scaled image is already cached.
+     */
+    private ImageData pendingOriginal( String uid )
+    {
+	PendingOriginal pending;
+	synchronized ( pendingOriginals )
+	    { pending = (PendingOriginal) pendingOriginals.get( uid ); }
+	return ( pending == null ? null : new SharedFetchImageData( pending ) );
+    }
+
+    /**
+     * Reads and buffers raw's image data, unless someone else is already fetching 
+     * the original image for uid, in which case we wait for and share their data.
+     */
+    private ImageData fetchOriginal( String uid, final ImageData raw ) throws Exception
+    {
+	if ( raw instanceof BufferedImageData ) // already fetched
+	    return raw;
+	if ( raw instanceof SharedFetchImageData ) // someone else's fetch, perhaps already finished
+	    return ((SharedFetchImageData) raw).awaitFetched();
+
+	PendingOriginal pending;
+	boolean         mine = false;
+	synchronized ( pendingOriginals )
+	    {
+		pending = (PendingOriginal) pendingOriginals.get( uid );
+		if ( pending == null )
+		    {
+			Callable fetchTask = new Callable()
+			    {
+				public Object call() throws Exception
+				{
+				    InputStream is = null;
+				    try
+					{
+					    is = raw.getInputStream();
+					    byte[] bytes = InputStreamUtils.getBytes( is );
+					    if ( fromOrigin( raw ) && cacheUnmodified( uid ) )
+						storeOriginalLater( uid, bytes );
+					    return new BufferedImageData( raw.getMimeType(), bytes, raw.getTimestamp(), -1, -1 );
+					}
+				    finally
+					{ InputStreamUtils.attemptClose( is ); }
+				}
+			    };
+			pending = new PendingOriginal( raw, new FutureTask( fetchTask ) );
+			pendingOriginals.put( uid, pending );
+			mine = true;
+		    }
+	    }
+
+	if ( mine )
+	    {
+		try
+		    { pending.fetch.run(); }
+		finally
+		    {
+			// we only share fetches in flight. later requests will find 
+			// the image decoded, or its spec stored, or else will fetch afresh
+			synchronized ( pendingOriginals )
+			    { pendingOriginals.remove( uid ); }
+		    }
+	    }
+	return (ImageData) SsimUtils.awaitResult( pending.fetch );
+    }
+
+    /**
+     * An HTTP response holds a connection to its origin, and perhaps one of its host's
+     * permits, until it has been read. So once we know we'll need an original's bytes,
+     * we read them before we wait on any permit or monitor. Other originals are left to
+     * be read only when they're needed.
+     */
+    private static void readIfConnected( ImageData raw, SingleFlightImageData original ) throws Exception
+    {
+	if ( raw instanceof OriginFetcher.Response && ((OriginFetcher.Response) raw).holdsConnection() )
+	    original.fetch();
+    }
+
+    // true if raw's bytes came over the wire, rather than from our store
+    private static boolean fromOrigin( ImageData raw )
+    { 
+	return ( raw instanceof OriginFetcher.Response ) || 
+	    ( raw instanceof RecordedImageData && ((RecordedImageData) raw).isFromOrigin() );
+    }
+
+    private void storeOriginalLater( final String uid, byte[] bytes ) throws IOException
+    {
+	final ImageBuffer buffer = new ImageBuffer();
+	buffer.write( bytes );
+	runner.postRunnable( new Runnable()
+	    {
+		public void run()
+		{
+		    try
+			{ store.storeOriginal( uid, buffer ); }
+		    catch ( SsimException e ) // we'll fetch from the origin next time
+			{ e.printStackTrace(); }
+		    finally
+			{ buffer.release(); }
+		}
+	    } );
+    }
+
+    final static class PendingOriginal
+    {
+	ImageData  raw;   // whose headers the fetching thread has already read
+	FutureTask fetch;
+
+	PendingOriginal( ImageData raw, FutureTask fetch )
+	{
+	    this.raw   = raw;
+	    this.fetch = fetch;
+	}
+    }
+
+    /**
+     * Describes an original image that someone else is fetching. Its 
+     * description is available immediately, its contents once the fetch completes.
+     */
+    final static class SharedFetchImageData implements ImageData
+    {
+	PendingOriginal pending;
+
+	SharedFetchImageData( PendingOriginal pending )
+	{ this.pending = pending; }
+
+	ImageData awaitFetched() throws Exception
+	{ return (ImageData) SsimUtils.awaitResult( pending.fetch ); }
+
+	public String getMimeType()
+	{ return pending.raw.getMimeType(); }
+
+	public long getTimestamp()
+	{ return pending.raw.getTimestamp(); }
+
+	public int getWidth()
+	{ return pending.raw.getWidth(); }
+
+	public int getHeight()
+	{ return pending.raw.getHeight(); }
+
+	public int getContentLength()
+	{ return pending.raw.getContentLength(); }
+
+	public String getETag()
+	{ return pending.raw.getETag(); }
+
+	public File getFile()
+	{ return null; }
+
+	public FileChannel getChannel()
+	{ return null; }
+
+	public void release()
+	{}
+
+	public InputStream getInputStream() throws IOException
+	{ 
+	    try
+		{ return awaitFetched().getInputStream(); }
+	    catch ( IOException e )
+		{ throw e; }
+	    catch ( Exception e )
+		{
+		    IOException ioe = new IOException( "Failed to fetch shared original image data" );
+		    ioe.initCause( e );
+		    throw ioe;
+		}
+	}
+    }
+
+    /**
+     * Describes the raw image data for a uid, but fetches its contents 
+     * via fetchOriginal(), on the first call to getInputStream().
+     */
+    class SingleFlightImageData implements ImageData
+    {
+	String    uid;
+	ImageData raw;
+
+	SingleFlightImageData( String uid, ImageData raw )
+	{
+	    this.uid = uid;
+	    this.raw = raw;
+	}
+
+	public String getMimeType()
+	{ return raw.getMimeType(); }
+
+	public long getTimestamp()
+	{ return raw.getTimestamp(); }
+
+	public int getWidth()
+	{ return raw.getWidth(); }
+
+	public int getHeight()
+	{ return raw.getHeight(); }
+
+	public int getContentLength()
+	{ return raw.getContentLength(); }
+
+	public String getETag()
+	{ return raw.getETag(); }
+
+	public File getFile()
+	{ return null; }
+
+	public FileChannel getChannel()
+	{ return null; }
+
+	public void release()
+	{}
+
+	/**
+	 * Fetches the original now, if no one has yet.
+	 */
+	synchronized void fetch() throws Exception
+	{ raw = fetchOriginal( uid, raw ); }
+
+	public synchronized InputStream getInputStream() throws IOException
+	{ 
+	    try
+		{ 
+		    fetch();
+		    return raw.getInputStream(); 
+		}
+	    catch ( IOException e )
+		{ throw e; }
+	    catch ( Exception e )
+		{
+		    IOException ioe = new IOException( "Failed to fetch original image data for " + uid );
+		    ioe.initCause( e );
+		    throw ioe;
+		}
+	}
+    }
+
+    // decoding counts against our concurrency limit, just like scaling and encoding
+    class PermittedDecoder implements DecodedImageCache.Decoder
+    {
+	OriginalImageReader originalReader;
+
+	PermittedDecoder( OriginalImageReader originalReader )
+	{ this.originalReader = originalReader; }
+
+	public BufferedImage decode( int subsample_x, int subsample_y ) throws Exception
+	{
+	    scalePermits.acquire();
+	    try
+		{ return originalReader.read( subsample_x, subsample_y ); }
+	    finally
+		{ scalePermits.release(); }
+	}
+    }
+
+    /**
+     * A newly scaled image that is encoded only once it is about to be sent, not 
+     * while we hold a scale permit or the image's monitor. The encoded bytes are
+     * handed off to be stored before any are sent. Callers must release() this,
+     * or else other requests for the same image wait forever for its store.
+     */
+    final class StreamingImageData extends AbstractImageData
+    {
+	ImageDataKey  completeKey;
+	ImageSpec     originalImageSpec;
+	BufferedImage scaled;  // null once encoded or released
+	ImageBuffer   encoded; // null until encoded, and again once released
+
+	StreamingImageData( ImageDataKey completeKey, BufferedImage scaled, ImageSpec originalImageSpec )
+	{
+	    super( completeKey.getMimeType(), System.currentTimeMillis(), -1, completeKey.getWidth(), completeKey.getHeight() );
+	    this.completeKey       = completeKey;
+	    this.scaled            = scaled;
+	    this.originalImageSpec = originalImageSpec;
+	}
+
+	/**
+	 * Encodes the image, unless we already have, and hands a copy off to be 
+	 * stored before we send anything, so that a slow client can't hold up other
+	 * requests waiting on the store. Once encoded, we know our length and ETag.
+	 */
+	public synchronized void encode() throws IOException, SsimException
+	{
+	    if ( encoded != null )
+		return;
+	    if ( scaled == null )
+		throw new IOException( "The image for " + completeKey + " has already been released." );
+
+	    BufferedImage image = scaled;
+	    scaled = null; // we either store it or abandon the store right here
+
+	    boolean     ok        = false;
+	    ImageBuffer cacheCopy = new ImageBuffer();
+	    try
+		{
+		    SsimUtils.writeImage( image, getMimeType(), cacheCopy );
+		    ok = true;
+		}
+	    finally
+		{
+		    if (! ok )
+			{
+			    cacheCopy.release();
+			    abandonStore( completeKey );
+			}
+		}
+
+	    // one reference for the store, one for us until we're released
+	    cacheCopy.retain();
+	    runner.postRunnable( new ImageStoreTask( completeKey, cacheCopy, originalImageSpec ) );
+	    encoded = cacheCopy;
+	}
+
+	public synchronized int getContentLength()
+	{ return ( encoded == null ? -1 : encoded.size() ); }
+
+	public synchronized String getETag()
+	{ return ( encoded == null ? null : encoded.getETag() ); }
+
+	/**
+	 * Encodes the image if need be, then writes it to os, without closing it.
+	 */
+	public synchronized void writeTo( OutputStream os ) throws IOException, SsimException
+	{
+	    encode();
+	    encoded.writeTo( os );
+	}
+
+	// the buffer is never released, so its chunks will just be garbage collected
+	public InputStream getInputStream() throws IOException
+	{
+	    ImageBuffer buffer = new ImageBuffer();
+	    try
+		{ writeTo( buffer ); }
+	    catch ( SsimException e )
+		{
+		    IOException ioe = new IOException( "Failed to encode image " + completeKey );
+		    ioe.initCause( e );
+		    throw ioe;
+		}
+	    return buffer.getInputStream();
+	}
+
+	public synchronized void release()
+	{
+	    if ( scaled != null ) // never encoded, so never stored
+		{
+		    scaled = null;
+		    abandonStore( completeKey );
+		}
+	    if ( encoded != null )
+		{
+		    encoded.release();
+		    encoded = null;
+		}
+	}
+    }
+
+    private void abandonStore( ImageDataKey completeKey )
+    {
+	synchronized ( completeKey )
+	    {
+		pendingStores.remove( completeKey );
+		completeKey.notifyAll();
 	    }
     }
 
+    /**
+     * Regenerates and stores an image we've served stale. We hold no monitor
+     * while we work, and the store replaces the stale image atomically, so
+     * requests go on getting the stale image until the new one is ready.
+     */
+    class RevalidationTask implements Runnable
+    {
+	ImageDataKey key;
+	ImageDataKey completeKey;
+
+	RevalidationTask( ImageDataKey key, ImageDataKey completeKey )
+	{
+	    this.key         = key;
+	    this.completeKey = completeKey;
+	}
+
+	public void run()
+	{
+	    OriginalImageReader originalReader = null;
+	    ImageData           raw            = null;
+	    try
+		{
+		    // straight to the origin, we know any record we have is out of date
+		    raw = rawImageDataForUid( key.getUid() );
+
+		    ImageData current = store.retrieve( completeKey );
+		    boolean   beaten  = isFresh( current, raw ); // someone beat us to it
+		    if ( current != null )
+			current.release();
+		    if ( beaten )
+			return;
+
+		    SingleFlightImageData original = new SingleFlightImageData( key.getUid(), raw );
+		    readIfConnected( raw, original ); // before we wait for a scale permit
+		    originalReader = new OriginalImageReader( original );
+
+		    ImageSpec origSpec = store.originalImageSpec( key );
+		    if ( origSpec == null )
+			origSpec = new ConcreteImageSpec( raw.getMimeType(), 
+							  raw.getTimestamp(),
+							  originalReader.getWidth(),
+							  originalReader.getHeight() );
+
+		    BufferedImage decoded = decode( raw, origSpec, completeKey, originalReader );
+		    ImageBuffer bytes;
+		    scalePermits.acquire();
+		    try
+			{ bytes = SsimUtils.imageToBuffer( scale( decoded, completeKey ), completeKey.getMimeType() ); }
+		    finally
+			{ scalePermits.release(); }
+
+		    try
+			{ store.store( completeKey, bytes, origSpec ); }
+		    finally
+			{ bytes.release(); }
+		}
+	    catch ( Exception e )
+		{
+		    // we'll try again on the next request for the stale image,
+		    // unless it turns out the original is gone or broken
+		    e.printStackTrace(); 
+		    remember( key.getUid(), e );
+		}
+	    finally
+		{
+		    if ( originalReader != null )
+			originalReader.close();
+		    if ( raw != null )
+			raw.release();
+		    pendingRevalidations.remove( completeKey );
+		}
+	}
+    }
+
     class ImageStoreTask implements Runnable
     {
 	ImageDataKey completeKey;
-	byte[]       bytes;
+	ImageBuffer  bytes; // we own a reference, which we release once stored
 	ImageSpec    originalImageSpec;
 
-	ImageStoreTask( ImageDataKey completeKey, byte[] bytes, ImageSpec originalImageSpec )
+	ImageStoreTask( ImageDataKey completeKey, ImageBuffer bytes, ImageSpec originalImageSpec )
 	{
 	    this.completeKey       = completeKey;
 	    this.bytes             = bytes;
@@ -193,6 +941,7 @@ abstract class AbstractImageFinder implements ImageFinder
 			}
 		    finally
 			{ 
+			    bytes.release();
 			    pendingStores.remove( completeKey );
 			    completeKey.notifyAll();
 			}
@@ -204,42 +953,147 @@ abstract class AbstractImageFinder implements ImageFinder
     /**
      * May return a null mime type, or -1 for the timestamp, width, or height, if those cannot be determined!
      * This should be returned FAST. The image data SHOULD NOT BE READ AND BUFFERED, at least not
-     * prior to a call to getInputStream()!
+     * prior to a call to getInputStream()! The returned ImageData must be released.
      *
-     * By default calls urlForUid() and generates a suitable ImageData from the URL object.
+     * By default calls urlForUid() and fetches the URL via our OriginFetcher.
      */
-    ImageData rawImageDataForUid( final String uid ) throws Exception
+    ImageData rawImageDataForUid( String uid ) throws Exception
+    { return rawImageDataForUid( uid, null ); }
+
+    /**
+     * @param validators if not null, we ask the origin only whether its image
+     *                   has changed, and may get a "not modified" response
+     */
+    ImageData rawImageDataForUid( String uid, OriginRecord validators ) throws Exception
     {
 	URL u = urlForUid( uid );
 	//System.err.println("URL: " + uid);
-	final URLConnection uc = u.openConnection();
-	return new ImageData()
-	    {
-		public String getMimeType()
+	if ( u == null ) // e.g. ServletContext.getResource(...) finds no such resource
+	    throw new ImageUnavailableException( "No image found for " + uid + '.', ImageUnavailableException.NOT_FOUND );
+	return fetcher.fetch( uid, u, validators );
+    }
+
+    /**
+     * Stands in for an origin whose record is still fresh. We contact
+     * the origin only if someone actually needs the image's bytes.
+     */
+    final class RecordedImageData implements ImageData
+    {
+	String       uid;
+	OriginRecord record;
+
+	// MT: protected by this' lock
+	boolean from_origin = false;
+
+	RecordedImageData( String uid, OriginRecord record )
+	{
+	    this.uid    = uid;
+	    this.record = record;
+	}
+
+	public String getMimeType()
+	{ return record.getMimeType(); }
+
+	public long getTimestamp()
+	{ return record.getTimestamp(); }
+
+	synchronized boolean isFromOrigin()
+	{ return from_origin; }
+
+	// we prefer our own copy of the original, if it's no older than the 
+	// last version we fetched from the origin. otherwise, we fetch afresh
+	public synchronized InputStream getInputStream() throws IOException
+	{ 
+	    try
 		{ 
-		    String out = uc.getContentType(); 
-		    if (out == null)
-			out = SsimUtils.mimeTypeFromUid( uid );
-		    return out;
-		}
+		    ImageData original = store.retrieveOriginal( uid );
+		    if ( original != null && original.getTimestamp() >= record.getFetched() )
+			return releasingStream( original );
+		    else if ( original != null )
+			original.release();
 
-		public InputStream getInputStream() throws IOException
-		{ return new BufferedInputStream( uc.getInputStream(), BUFFER_SZ ); }
-		
-		public long getTimestamp()
-		{ return uc.getLastModified(); }
+		    from_origin = true;
+		    return releasingStream( rawImageDataForUid( uid ) );
+		}
+	    catch ( IOException e )
+		{ throw e; }
+	    catch ( Exception e )
+		{
+		    IOException ioe = new IOException( "Failed to open original image data for " + uid );
+		    ioe.initCause( e );
+		    throw ioe;
+		}
+	}
 		
-		public int getContentLength()
-		{ return uc.getContentLength(); }
+	// we release data once its bytes have been read, or straight away if we can't read them
+	private InputStream releasingStream( final ImageData data ) throws IOException
+	{
+	    InputStream is;
+	    try
+		{ is = data.getInputStream(); }
+	    catch ( IOException e )
+		{
+		    data.release();
+		    throw e;
+		}
+	    return new FilterInputStream( is )
+		{
+		    public void close() throws IOException
+		    {
+			try { super.close(); }
+			finally { data.release(); }
+		    }
+		};
+	}
+
+	public int getContentLength()
+	{ return -1; }
+
+	public String getETag()
+	{ return null; }
+
+	public int getWidth()
+	{ return -1; }
+
+	public int getHeight()
+	{ return -1; }
+
+	public File getFile()
+	{ return null; }
 
-		public int getWidth()
-		{ return -1; }
+	public FileChannel getChannel()
+	{ return null; }
 
-		public int getHeight()
-		{ return -1; }
-	    };
+	public void release()
+	{}
     }
 
+    /**
+     * @return the number of seconds, after we last heard from uid's origin, during
+     *         which we'll trust what we heard without asking again, unless the origin
+     *         itself specifies a max-age. By default 0, i.e. we always ask.
+     */
+    protected long defaultOriginMaxAge( String uid ) throws Exception
+    { return 0; }
+
+    /**
+     * @param status the HTTP status that best describes the failure, see ImageUnavailableException
+     *
+     * @return the number of seconds during which we'll fail requests for uid straight away,
+     *         after we fail to fetch or decode its original. By default 0, i.e. we try
+     *         afresh every time.
+     */
+    protected long failureTtl( String uid, int status ) throws Exception
+    { return 0; }
+
+    /**
+     * @return the number of seconds after an original is modified during which we may
+     *         serve images scaled from the previous version, while we regenerate them in the
+     *         background. By default 0, i.e. we regenerate before we serve.
+     */
+    protected long maxStaleness( String uid ) throws Exception
+    { return 0; }
+
     protected abstract URL urlForUid( String uid ) throws Exception;
 
     protected abstract boolean cacheUnmodified( String uid ) throws Exception;
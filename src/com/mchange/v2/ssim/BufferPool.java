@@ -0,0 +1,64 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.util.*;
+
+/**
+ * A small pool of large, equally-sized byte arrays, so that
+ * we don't allocate fresh copy buffers for every request.
+ */
+final class BufferPool
+{
+    // MT: unchanging after constructor
+    final int buffer_size;
+    final int max_pooled;
+
+    // MT: protected by this' lock
+    LinkedList pooled = new LinkedList();
+
+    BufferPool( int buffer_size, int max_pooled )
+    {
+	this.buffer_size = buffer_size;
+	this.max_pooled  = max_pooled;
+    }
+
+    public int getBufferSize()
+    { return buffer_size; }
+
+    public synchronized byte[] checkout()
+    {
+	if ( pooled.isEmpty() )
+	    return new byte[ buffer_size ];
+	else
+	    return (byte[]) pooled.removeLast();
+    }
+
+    public synchronized void checkin( byte[] buffer )
+    {
+	// we just let foreign or surplus buffers go to the garbage collector
+	if ( buffer.length == buffer_size && pooled.size() < max_pooled )
+	    pooled.add( buffer );
+    }
+}
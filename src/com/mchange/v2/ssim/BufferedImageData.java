@@ -28,6 +28,7 @@ import java.io.*;
 final class BufferedImageData extends AbstractImageData
 {
     byte[] bytes;
+    String etag = null;
 
     public BufferedImageData(String mimeType, byte[] bytes, long timestamp, int width, int height)
     {
@@ -40,4 +41,11 @@ final class BufferedImageData extends AbstractImageData
 
     public InputStream getInputStream() throws IOException
     { return new ByteArrayInputStream( bytes ); }
+
+    public synchronized String getETag()
+    {
+	if ( etag == null )
+	    etag = SsimUtils.strongETag( bytes );
+	return etag;
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Image data in a ByteBuffer (on the heap, direct, or mapped from a file),
+ * which can write itself out without an extra copy. The buffer's contents
+ * must never change.
+ */
+final class ByteBufferImageData extends AbstractImageData
+{
+    ByteBuffer data; // positioned at the image's start, limited at its end
+    String     etag;
+
+    ByteBufferImageData( String mimeType, ByteBuffer data, String etag, long timestamp, int width, int height )
+    {
+	super( mimeType, timestamp, data.remaining(), width, height );
+	this.data = data.duplicate();
+	this.etag = etag;
+    }
+
+    public String getETag()
+    { return etag; }
+
+    public InputStream getInputStream()
+    {
+	final ByteBuffer buffer = data.duplicate();
+	if ( buffer.hasArray() )
+	    return new ByteArrayInputStream( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+	else
+	    {
+		return new InputStream()
+		    {
+			public int read()
+			{ return ( buffer.hasRemaining() ? buffer.get() & 0xff : -1 ); }
+
+			public int read( byte[] b, int off, int len )
+			{
+			    if ( len == 0 )
+				return 0;
+			    if (! buffer.hasRemaining() )
+				return -1;
+			    int n = Math.min( len, buffer.remaining() );
+			    buffer.get( b, off, n );
+			    return n;
+			}
+
+			public int available()
+			{ return buffer.remaining(); }
+		    };
+	    }
+    }
+
+    /**
+     * Writes the image to os, without closing it.
+     */
+    public void writeTo( OutputStream os ) throws IOException
+    {
+	ByteBuffer buffer = data.duplicate();
+	if ( buffer.hasArray() )
+	    os.write( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+	else
+	    {
+		WritableByteChannel wbc = Channels.newChannel( os );
+		while ( buffer.hasRemaining() )
+		    wbc.write( buffer );
+	    }
+    }
+}
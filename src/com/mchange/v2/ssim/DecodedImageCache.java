@@ -0,0 +1,265 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.awt.image.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A bounded cache of decoded original images, so that requests for 
+ * many sizes of the same original decode it just once. Concurrent requests
+ * share a decode in progress even if its result can't be cached. Entries are weighed
+ * by the bytes of their pixel data, and are evicted least-recently-used first
+ * into a second tier of SoftReferences, from which they can be recovered
+ * if the garbage collector hasn't yet needed the memory.
+ *
+ * Since originals may be decoded with subsampling, an entry only satisfies
+ * requests for targets no finer than the entry was decoded for.
+ */
+final class DecodedImageCache
+{
+    interface Decoder
+    {
+	public BufferedImage decode( int subsample_x, int subsample_y ) throws Exception;
+    }
+
+    // MT: unchanging after constructor
+    final long max_bytes;
+
+    // MT: protected by this' lock
+    LinkedHashMap  hardEntries = new LinkedHashMap( 16, 0.75f, true ); //access order, for LRU eviction
+    long           hard_bytes  = 0;
+    HashMap        softEntries = new HashMap();
+    ReferenceQueue clearedRefs = new ReferenceQueue();
+    HashMap        pending     = new HashMap();
+
+    /**
+     * @param max_bytes if less than or equal to zero, nothing is cached
+     */
+    DecodedImageCache( long max_bytes )
+    { this.max_bytes = max_bytes; }
+
+    public BufferedImage find( String uid, 
+			       long timestamp, 
+			       int orig_width, 
+			       int orig_height, 
+			       int target_width, 
+			       int target_height, 
+			       final Decoder decoder ) throws Exception
+    {
+	final int subsample_x = SsimUtils.subsamplingFactor( orig_width,  target_width );
+	final int subsample_y = SsimUtils.subsamplingFactor( orig_height, target_height );
+
+	// if we don't know when the original last changed, we can't tell a cached image is current
+	boolean cacheable = ( max_bytes > 0 && timestamp > 0 );
+
+	Key     key    = new Key( uid, timestamp );
+	Pending mine   = null;
+	Pending theirs = null;
+	synchronized ( this )
+	    {
+		Entry entry = ( cacheable ? lookup( key ) : null );
+		if ( entry != null && entry.isFineEnough( subsample_x, subsample_y ) )
+		    return entry.image;
+
+		Pending current = (Pending) pending.get( key );
+		if ( current != null && current.isFineEnough( subsample_x, subsample_y ) )
+		    theirs = current;
+		else
+		    {
+			Callable decodeTask = new Callable()
+			    {
+				public Object call() throws Exception
+				{ return decoder.decode( subsample_x, subsample_y ); }
+			    };
+			mine = new Pending( new FutureTask( decodeTask ), subsample_x, subsample_y );
+			pending.put( key, mine );
+		    }
+	    }
+
+	if ( theirs != null )
+	    return awaitDecode( theirs );
+	else
+	    {
+		try
+		    {
+			mine.task.run();
+			BufferedImage out = awaitDecode( mine );
+			if ( cacheable )
+			    {
+				synchronized ( this )
+				    { insert( key, new Entry( out, subsample_x, subsample_y ) ); }
+			    }
+			return out;
+		    }
+		finally
+		    {
+			synchronized ( this )
+			    {
+				if ( pending.get( key ) == mine )
+				    pending.remove( key );
+			    }
+		    }
+	    }
+    }
+
+    private static BufferedImage awaitDecode( Pending p ) throws Exception
+    { return (BufferedImage) SsimUtils.awaitResult( p.task ); }
+
+    // MT: call only while holding this' lock
+    private Entry lookup( Key key )
+    {
+	expungeClearedRefs();
+
+	Entry out = (Entry) hardEntries.get( key );
+	if ( out == null )
+	    {
+		SoftEntryRef ref = (SoftEntryRef) softEntries.get( key );
+		if ( ref != null )
+		    {
+			out = (Entry) ref.get();
+			if ( out != null ) // rescued from the GC, it's hot again
+			    insert( key, out );
+		    }
+	    }
+	return out;
+    }
+
+    // MT: call only while holding this' lock
+    private void insert( Key key, Entry entry )
+    {
+	Entry hardExisting = (Entry) hardEntries.get( key );
+	if ( hardExisting != null && hardExisting != entry && ! entry.isAtLeastAsFineAs( hardExisting ) )
+	    return;
+
+	if ( hardExisting != null )
+	    {
+		hardEntries.remove( key );
+		hard_bytes -= hardExisting.weight;
+	    }
+	softEntries.remove( key );
+
+	if ( entry.weight > max_bytes ) // too big to hold onto for sure
+	    softEntries.put( key, new SoftEntryRef( key, entry, clearedRefs ) );
+	else
+	    {
+		hardEntries.put( key, entry );
+		hard_bytes += entry.weight;
+		for ( Iterator ii = hardEntries.entrySet().iterator(); hard_bytes > max_bytes && ii.hasNext(); )
+		    {
+			Map.Entry eldest = (Map.Entry) ii.next();
+			Key   eldestKey   = (Key) eldest.getKey();
+			Entry eldestEntry = (Entry) eldest.getValue();
+			ii.remove();
+			hard_bytes -= eldestEntry.weight;
+			softEntries.put( eldestKey, new SoftEntryRef( eldestKey, eldestEntry, clearedRefs ) );
+		    }
+	    }
+    }
+
+    // MT: call only while holding this' lock
+    private void expungeClearedRefs()
+    {
+	for ( SoftEntryRef ref = (SoftEntryRef) clearedRefs.poll(); ref != null; ref = (SoftEntryRef) clearedRefs.poll() )
+	    {
+		if ( softEntries.get( ref.key ) == ref )
+		    softEntries.remove( ref.key );
+	    }
+    }
+
+    final static class Key
+    {
+	String uid;
+	long   timestamp;
+
+	Key( String uid, long timestamp )
+	{
+	    this.uid       = uid;
+	    this.timestamp = timestamp;
+	}
+
+	public boolean equals( Object o )
+	{
+	    if (! (o instanceof Key) )
+		return false;
+	    Key other = (Key) o;
+	    return timestamp == other.timestamp && uid.equals( other.uid );
+	}
+
+	public int hashCode()
+	{ return uid.hashCode() ^ (int) (timestamp ^ (timestamp >>> 32)); }
+    }
+
+    final static class Entry
+    {
+	BufferedImage image;
+	int           subsample_x;
+	int           subsample_y;
+	long          weight;
+
+	Entry( BufferedImage image, int subsample_x, int subsample_y )
+	{
+	    this.image       = image;
+	    this.subsample_x = subsample_x;
+	    this.subsample_y = subsample_y;
+	    this.weight      = SsimUtils.pixelBytes( image );
+	}
+
+	boolean isFineEnough( int subsample_x, int subsample_y )
+	{ return this.subsample_x <= subsample_x && this.subsample_y <= subsample_y; }
+
+	boolean isAtLeastAsFineAs( Entry other )
+	{ return isFineEnough( other.subsample_x, other.subsample_y ); }
+    }
+
+    final static class Pending
+    {
+	FutureTask task;
+	int        subsample_x;
+	int        subsample_y;
+
+	Pending( FutureTask task, int subsample_x, int subsample_y )
+	{
+	    this.task        = task;
+	    this.subsample_x = subsample_x;
+	    this.subsample_y = subsample_y;
+	}
+
+	boolean isFineEnough( int subsample_x, int subsample_y )
+	{ return this.subsample_x <= subsample_x && this.subsample_y <= subsample_y; }
+    }
+
+    final static class SoftEntryRef extends SoftReference
+    {
+	Key key;
+
+	SoftEntryRef( Key key, Entry entry, ReferenceQueue q )
+	{
+	    super( entry, q );
+	    this.key = key;
+	}
+    }
+}
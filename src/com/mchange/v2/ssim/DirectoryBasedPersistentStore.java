@@ -25,10 +25,13 @@ package com.mchange.v2.ssim;
 
 import java.io.*;
 import java.util.*;
-import java.net.URLEncoder;
+import java.util.concurrent.atomic.LongAdder;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import com.mchange.v1.io.InputStreamUtils;
 import com.mchange.v1.io.OutputStreamUtils;
-import com.mchange.v2.io.FileUtils;
 import com.mchange.v2.io.DirectoryDescentUtils;
 import com.mchange.v2.lock.SharedUseExclusiveUseLock;
 import com.mchange.v2.lock.ExactReentrantSharedUseExclusiveUseLock;
@@ -40,37 +43,19 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	{
 	    public int compare( Object a, Object b )
 	    {
-		File aa = (File) a;
-		File bb = (File) b;
-		long al = aa.lastModified();
-		long bl = bb.lastModified();
+		IndexCandidate aa = (IndexCandidate) a;
+		IndexCandidate bb = (IndexCandidate) b;
+		long al = aa.last_modified;
+		long bl = bb.last_modified;
 		if ( al < bl )
 		    return -1;
 		if ( al == bl )
-		    return aa.compareTo( bb );
+		    return aa.file.compareTo( bb.file );
 		else
 		    return +1;
 	    }
 	};
 
-    // MT: thread-safe immutable singleton
-    final static Comparator DESC_SIZE_COMPARATOR = new Comparator()
-	{
-	    public int compare( Object a, Object b )
-	    {
-		File aa = (File) a;
-		File bb = (File) b;
-		long al = aa.length();
-		long bl = bb.length();
-		if ( al < bl )
-		    return +1;
-		if ( al == bl )
-		    return aa.compareTo( bb );
-		else
-		    return -1;
-	    }
-	};
-
     // MT: thread-safe immutable singleton
     final static FileFilter INSTANCES_ONLY_FILE_FILTER = new FileFilter()
 	{
@@ -79,18 +64,69 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 		if ( file.isDirectory() )
 		    return false;
 		else
-		    return file.getName().startsWith("instance_");
+		    return file.getName().startsWith( INSTANCE_FILE_PREFIX );
 	    }
 	};
 
     // MT: inlined constant
     final static int BUFFER_SIZE = (32 * 1024);
 
+    // MT: inlined constant
+    final static int CULL_BATCH_SIZE = 64;
+
+    // MT: inlined constant
+    final static int CULL_BATCH_PAUSE_MSECS = 10;
+
+    // MT: inlined constant
+    final static int ACCESS_STRIPES = 16; // must be a power of two
+
+    // MT: inlined constant
+    final static int ACCESS_STRIPE_SIZE = 64;
+
+    // MT: inlined constant
+    final static long SERVED_ELSEWHERE = -1; // in place of a size, for uses noted by noteServed(...)
+
+    // MT: inlined constant
+    final static String ACCESS_JOURNAL_FILE_NAME = "access_journal";
+
+    // MT: inlined constant
+    final static int ACCESS_JOURNAL_VERSION = 1;
+
     // MT: inlined constant
     final static String STORAGE_DIR_BASENAME = "SsimCacheDir_v";
 
     // MT: inlined constant
-    final static int CACHE_FORMAT_VERSION = 1;
+    final static String TMP_FILE_PREFIX = "tmp_";
+
+    // MT: inlined constant
+    final static String INSTANCE_FILE_PREFIX = "instance_";
+
+    // MT: inlined constant
+    final static String ETAG_FILE_PREFIX = "etag_";
+
+    // MT: inlined constant
+    final static String ORIGINAL_FILE_SUFFIX = "original";
+
+    // MT: inlined constant
+    final static String UID_FILE_NAME = "uid";
+
+    // MT: inlined constant
+    final static String PIN_DIR_NAME = "pinned";
+
+    // MT: inlined constant
+    final static String PINNED_FILE_PREFIX = "pinned_";
+
+    // MT: inlined constant
+    final static int PIN_MSECS = 60 * 1000; // far longer than a container takes to open a file
+
+    // MT: inlined constant
+    final static String UNDEFINED_DOTTY_MIME_TYPE = "undefined.mime.type";
+
+    // MT: inlined constant
+    final static int CACHE_FORMAT_VERSION = 2;
+
+    // MT: inlined constant
+    final static String V1_SUBDIR_SUFFIX = "_cache";
 
     // MT: synchronized MANUALLY (be careful) on locksForKeys' monitor
     Map locksForKeysAndUids =  new HashMap();
@@ -98,30 +134,94 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
     // MT: unchanging after constructor
     final File storageDir;
 
+    // MT: unchanging after constructor
+    final File pinDir;
+
+    // MT: protected by its own lock
+    //
+    // Pins, oldest first
+    final LinkedList pins = new LinkedList();
+
+    // MT: protected by pins' lock
+    long pin_count = 0;
+
     // MT: unchanging after constructor
     final long max_size_in_bytes;
 
     // MT: unchanging after constructor
     final int cull_delay_in_msecs;
 
-    // MT: thread-safe concurrency control structure
-    final SharedUseExclusiveUseLock globalLock = new ExactReentrantSharedUseExclusiveUseLock( this + " -- GLOBAL LOCK");
+    // MT: unchanging after constructor
+    final long journal_interval_in_msecs;
 
     // MT: a Thread, whose gentleStop() method is perfectly thread-safe...
     final CullThread cullThread;
 
+    // MT: protected by this' lock. null if we never cull.
+    //
+    // our index, it knows of the instances on disk as ImageDataKeys (originalKey(...) for
+    // originals), sized as the bytes taken by an instance file and its etag. an instance a
+    // retrieve has just found is indexed even if we've missed it, so the index only ever
+    // lags behind the disk briefly
+    final EvictionPolicy policy;
+
+    // MT: protected by this' lock
+    //
+    // non-null only while we rebuild the index at startup, PendingUses to apply after
+    List pendingUses = null;
+
+    // MT: thread-safe, for hit ratio and byte hit ratio. we count the bytes
+    //     of what we store as the bytes of the misses that led to storing it
+    final LongAdder hits         = new LongAdder();
+    final LongAdder misses       = new LongAdder();
+    final LongAdder hit_bytes    = new LongAdder();
+    final LongAdder stored_bytes = new LongAdder();
+
+    // MT: protected by this' lock
+    boolean accessed_since_journal = false;
+
+    // MT: each stripe protected by its own lock
+    //
+    // retrieves record what they've used here, rather than in the index, so
+    // that they don't all contend for one lock. full stripes are drained into
+    // the index, and the cull drains them all before it decides anything
+    final AccessStripe[] accessStripes;
+
 
     /**
      * @param max_size   the maximum size of our cache, in megabytes
      * @param cull_delay how long we should wait between attempts to cull the cache, in seconds
+     * @param journal_interval how long we should wait between records of which images have been
+     *                         used recently, in seconds. if not positive, we record only on close()
+     * @param policy     decides what we cull, unused if we never cull
      */
-    DirectoryBasedPersistentStore( File parentDir, long max_size, int cull_delay )
+    DirectoryBasedPersistentStore( File parentDir, long max_size, int cull_delay, int journal_interval, EvictionPolicy policy )
     {
 	if (! parentDir.isDirectory() || ! parentDir.canWrite())
 	    throw new IllegalArgumentException( parentDir.getAbsolutePath() + " must be a directory, and must be writable!");
 	this.storageDir          = findCreateStorageDir( parentDir );
+	this.pinDir              = new File( storageDir, PIN_DIR_NAME );
+	deleteTree( pinDir ); // no one can still be waiting to open pins from before a restart
+	pinDir.mkdir();
 	this.max_size_in_bytes   = max_size * (1024 * 1024);
 	this.cull_delay_in_msecs = cull_delay * 1000;
+	this.journal_interval_in_msecs = journal_interval * 1000L;
+	this.policy              = ( max_size > 0 && cull_delay > 0 ? policy : null );
+	this.accessStripes       = new AccessStripe[ ACCESS_STRIPES ];
+	for (int i = 0; i < ACCESS_STRIPES; ++i)
+	    accessStripes[i] = new AccessStripe();
+
+	final File v1Dir = new File( parentDir, STORAGE_DIR_BASENAME + 1 );
+	if ( v1Dir.isDirectory() )
+	    {
+		Thread migrationThread = new Thread( "DirectoryBasedPersistentStore.MigrationThread@" + Integer.toString( System.identityHashCode( this ), 16 ) )
+		    {
+			public void run()
+			{ migrateFromV1( v1Dir ); }
+		    };
+		migrationThread.setDaemon( true );
+		migrationThread.start();
+	    }
 	
 	if (max_size > 0 && cull_delay > 0)
 	    {
@@ -135,13 +235,7 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
     public ImageSpec originalImageSpec( ImageDataKey maybeIncompleteKey ) throws SsimException
     {
 	try
-	    {
-		globalLock.acquireShared();
-		try
-		    { return _originalImageSpec( maybeIncompleteKey ); }
-		finally
-		    { globalLock.relinquishShared(); }
-	    }
+	    { return _originalImageSpec( maybeIncompleteKey ); }
 	catch ( Exception e )
 	    {
 		e.printStackTrace();
@@ -149,16 +243,21 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	    }
     }
 
-    public void store( ImageDataKey completeKey, byte[] imageBytes, ImageSpec originalImageSpec ) throws SsimException
+    public void store( ImageDataKey completeKey, ImageBuffer imageBytes, ImageSpec originalImageSpec ) throws SsimException
     {
 	try
+	    { _store( completeKey, imageBytes, originalImageSpec ); }
+	catch ( Exception e )
 	    {
-		globalLock.acquireShared();
-		try
-		    { _store( completeKey, imageBytes, originalImageSpec ); }
-		finally
-		    { globalLock.relinquishShared(); }
+		e.printStackTrace();
+		throw new SsimException( e ); 
 	    }
+    }
+
+    public ImageData retrieve( ImageDataKey completeKey ) throws SsimException
+    {
+	try
+	    { return _retrieve( completeKey ); }
 	catch ( Exception e )
 	    {
 		e.printStackTrace();
@@ -166,16 +265,30 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	    }
     }
 
-    public ImageData retrieve( ImageDataKey completeKey ) throws SsimException
+    // a tier in front of us may still hold what we've culled, so we
+    // note only uses of what we know of, see indexUsed(...)
+    public void noteServed( ImageDataKey completeKey, int length )
+    {
+	recordAccess( completeKey, SERVED_ELSEWHERE );
+	hits.increment();
+	hit_bytes.add( length );
+    }
+
+    public ImageData retrieveOriginal( String uid ) throws SsimException
     {
 	try
+	    { return _retrieveOriginal( uid ); }
+	catch ( Exception e )
 	    {
-		globalLock.acquireShared();
-		try
-		    { return _retrieve( completeKey ); }
-		finally
-		    { globalLock.relinquishShared(); }
+		e.printStackTrace();
+		throw new SsimException( e ); 
 	    }
+    }
+
+    public void storeOriginal( String uid, ImageBuffer imageBytes ) throws SsimException
+    {
+	try
+	    { _storeOriginal( uid, imageBytes ); }
 	catch ( Exception e )
 	    {
 		e.printStackTrace();
@@ -183,16 +296,21 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	    }
     }
 
-    public void close() throws SsimException
+    public OriginRecord originRecord( String uid ) throws SsimException
     {
 	try
+	    { return _originRecord( uid ); }
+	catch ( Exception e )
 	    {
-		globalLock.acquireExclusive();
-		try
-		    { cullThread.gentleStop(); }
-		finally
-		    { globalLock.relinquishExclusive(); }
+		e.printStackTrace();
+		throw new SsimException( e ); 
 	    }
+    }
+
+    public void storeOriginRecord( String uid, OriginRecord record ) throws SsimException
+    {
+	try
+	    { _storeOriginRecord( uid, record ); }
 	catch ( Exception e )
 	    {
 		e.printStackTrace();
@@ -200,6 +318,22 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	    }
     }
 
+    public void close() throws SsimException
+    {
+	if ( cullThread != null )
+	    {
+		cullThread.gentleStop();
+		cullThread.interrupt();
+		try
+		    { writeAccessJournal(); }
+		catch ( Exception e )
+		    {
+			e.printStackTrace();
+			throw new SsimException( e ); 
+		    }
+	    }
+    }
+
     private ImageSpec _originalImageSpec( ImageDataKey maybeIncompleteKey ) throws Exception
     {
 	String uid = maybeIncompleteKey.getUid();
@@ -226,15 +360,39 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	    { folderLock.relinquishShared(); }
     }
 
-    private void _store( ImageDataKey completeKey, byte[] imageBytes, ImageSpec originalImageSpec ) throws Exception
+    private void _store( ImageDataKey completeKey, ImageBuffer imageBytes, ImageSpec originalImageSpec ) throws Exception
     {
 	String uid = completeKey.getUid();
 	ensureInitialized( uid, originalImageSpec );
-	SharedUseExclusiveUseLock fileLock = findLock( completeKey );
+	storeInstance( findInstanceFile( completeKey ), findETagFile( completeKey ), completeKey, imageBytes );
+    }
+
+    // originals are culled just like scaled instances, but they
+    // carry no ImageSpec, the origin record describes them
+    private void _storeOriginal( String uid, ImageBuffer imageBytes ) throws Exception
+    {
+	SharedUseExclusiveUseLock folderLock = findLock( uid );
+	folderLock.acquireExclusive();
+	try
+	    { ensureInstancesDir( uid ); }
+	finally
+	    { folderLock.relinquishExclusive(); }
+
+	storeInstance( findOriginalFile( uid ), findOriginalETagFile( uid ), originalKey( uid ), imageBytes );
+    }
+
+    private void storeInstance( File instanceFile, File etagFile, ImageDataKey key, ImageBuffer imageBytes ) throws Exception
+    {
+	SharedUseExclusiveUseLock fileLock = findLock( key );
 	fileLock.acquireExclusive();
 	try
 	    { 
-		writeInstanceFile( completeKey, imageBytes ); 
+		// we write the etag first, so that we never have an instance without one
+		byte[] etagBytes = imageBytes.getETag().getBytes( "ISO-8859-1" );
+		writeAtomically( etagFile, etagBytes );
+		writeAtomically( instanceFile, imageBytes ); 
+		stored_bytes.add( imageBytes.size() );
+		indexUsed( key, imageBytes.size() + etagBytes.length, true );
 	    }
 	finally
 	    { fileLock.relinquishExclusive(); }
@@ -246,30 +404,73 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	folderLock.acquireShared();
 	try
 	    {
-		File instancesDir = findInstancesDir( uid );
-		if (! instancesDir.exists()) // we have to initialize
+		// the directory may already exist, holding just an origin record
+		File origMetaDataFile = findOriginalMetadataFile( uid );
+		if (! origMetaDataFile.exists()) // we have to initialize
 		    {
-			ObjectOutputStream oos = null;
 			folderLock.acquireExclusive();
 			try
 			    {
-				instancesDir.mkdir();
-				File origMetaDataFile = findOriginalMetadataFile( uid );
-				oos = new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream( origMetaDataFile ), BUFFER_SIZE ) );
-				oos.writeObject( surelySerializable( originalImageSpec ) );
-				oos.flush();
+				ensureInstancesDir( uid );
+				writeAtomically( origMetaDataFile, serialize( surelySerializable( originalImageSpec ) ) );
 			    }
 			finally
-			    { 
-				OutputStreamUtils.attemptClose( oos );
-				folderLock.relinquishExclusive();
+			    { folderLock.relinquishExclusive(); }
+		    }
+	    }
+	finally
+	    { folderLock.relinquishShared(); }
+    }
+
+    private OriginRecord _originRecord( String uid ) throws Exception
+    {
+	SharedUseExclusiveUseLock folderLock = findLock( uid );
+	folderLock.acquireShared();
+	try
+	    {
+		File recordFile = findOriginRecordFile( uid );
+		if (! recordFile.exists())
+		    return null;
+		else
+		    {
+			ObjectInputStream ois = null;
+			try
+			    {
+				ois = new ObjectInputStream( new BufferedInputStream( new FileInputStream( recordFile ), BUFFER_SIZE ) );
+				return (OriginRecord) ois.readObject();
 			    }
+			catch ( FileNotFoundException e ) // deleted out from under us
+			    { return null; }
+			finally
+			    { InputStreamUtils.attemptClose( ois ); }
 		    }
 	    }
 	finally
 	    { folderLock.relinquishShared(); }
     }
 
+    private void _storeOriginRecord( String uid, OriginRecord record ) throws Exception
+    {
+	SharedUseExclusiveUseLock folderLock = findLock( uid );
+	folderLock.acquireExclusive();
+	try
+	    {
+		ensureInstancesDir( uid );
+		writeAtomically( findOriginRecordFile( uid ), serialize( record ) ); 
+	    }
+	finally
+	    { folderLock.relinquishExclusive(); }
+    }
+
+    private static byte[] serialize( Object o ) throws IOException
+    {
+	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	ObjectOutputStream oos = new ObjectOutputStream( baos );
+	oos.writeObject( o );
+	oos.close();
+	return baos.toByteArray();
+    }
+
     private ImageSpec surelySerializable( ImageSpec spec )
     {
 	if (spec instanceof Serializable)
@@ -278,20 +479,52 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	    return new ConcreteImageSpec( spec.getMimeType(), spec.getTimestamp(), spec.getWidth(), spec.getHeight() );
     }
 
-    private ImageData _retrieve( final ImageDataKey completeKey ) throws Exception
+    private ImageData _retrieve( ImageDataKey completeKey ) throws Exception
+    {
+	return retrieveInstance( findInstanceFile( completeKey ), 
+				 findETagFile( completeKey ), 
+				 completeKey,
+				 completeKey.getMimeType(),
+				 completeKey.getWidth(), 
+				 completeKey.getHeight() );
+    }
+
+    private ImageData _retrieveOriginal( String uid ) throws Exception
+    { return retrieveInstance( findOriginalFile( uid ), findOriginalETagFile( uid ), originalKey( uid ), null, -1, -1 ); }
+
+    private ImageData retrieveInstance( final File storageFile, 
+					File etagFile, 
+					ImageDataKey key, 
+					String mimeType, 
+					int width, 
+					int height ) throws Exception
     {
-	final SharedUseExclusiveUseLock fileLock = findLock( completeKey );
+	final SharedUseExclusiveUseLock fileLock = findLock( key );
 	fileLock.acquireShared();
 	try
 	    {
-		final File storageFile = findInstanceFile( completeKey );
 		//System.err.println("Checking for storageFile: " + storageFile + " [" + (storageFile.exists() ? "exists]" : "does not exist]"));
 		if (! storageFile.exists())
-		    return null;
+		    {
+			misses.increment();
+			return null;
+		    }
 		else
 		    {
-			// so we can used lastModified for a LRU cull of old files
-			FileUtils.touchExisting( storageFile );
+			// we used to touch instance files as they were used, so for old instances,
+			// only the etag file's lastModified records when the instance was created
+			long timestamp = etagFile.lastModified();
+			if ( timestamp <= 0 ) // no etag file, must be an old instance
+			    timestamp = storageFile.lastModified();
+
+			// we note recency in memory only, reads never write to the filesystem
+			final int length = (int) storageFile.length();
+			final long last_modified = storageFile.lastModified();
+			recordAccess( key, length + etagFile.length() );
+			hits.increment();
+			hit_bytes.add( length );
+
+			final String etag = readETag( etagFile );
 
 			// TODO: this will break if the Thread that calls getInputStream()
 			//       is not the same as the one that calls close(). Should we
@@ -299,87 +532,510 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 			//       pay attention to which Thread is doing the work, like
 			//       SimpleSharedUseExclusiveUseLock. But probably we just
 			//       don't care.
-			return new AbstractImageData( completeKey.getMimeType(), 
-						      storageFile.lastModified(), 
-						      (int) storageFile.length(), 
-						      completeKey.getWidth(), 
-						      completeKey.getHeight() )
+			return new AbstractImageData( mimeType, 
+						      timestamp, 
+						      length, 
+						      width, 
+						      height )
 			    {
 				public InputStream getInputStream() throws IOException
-				{ 
+				{ return new BufferedInputStream( openLockedStream( storageFile, fileLock ) ); }
+
+				// the instance file may be replaced or culled before whoever
+				// we hand a File to gets around to opening it, so we hand out
+				// a pin of it instead
+				public File getFile()
+				{ return pin( storageFile, fileLock, length, last_modified ); }
+
+				// closing the channel closes the underlying stream,
+				// which relinquishes our read lock
+				public FileChannel getChannel() throws IOException
+				{ return openLockedStream( storageFile, fileLock ).getChannel(); }
+
+				public String getETag()
+				{ return etag; }
+			    };
+		    }
+		
+	    }
+	finally
+	    { fileLock.relinquishShared(); }
+    }
+
+    private static FileInputStream openLockedStream( File storageFile, final SharedUseExclusiveUseLock fileLock ) throws IOException
+    {
+	try
+	    {
+		fileLock.acquireShared();
+		try
+		    {
+			return new FileInputStream( storageFile )
+			    {
+				boolean closed = false;
+
+				public synchronized void close() throws IOException
+				{
+				    // closing our channel closes us, and closing us closes our channel,
+				    // so we have to mark ourselves closed before anything else happens
+				    if ( closed )
+					return;
+				    closed = true;
 				    try
 					{
-					    fileLock.acquireShared();
-					    return new BufferedInputStream( new FileInputStream( storageFile ) )
-						{
-						    boolean closed = false;
-
-						    public synchronized void close() throws IOException
-						    {
-							try
-							    {
-								try { super.close(); }
-								finally 
-								    { 
-									fileLock.relinquishShared(); 
-									closed = true;
-								    }
-							    }
-							catch ( IllegalStateException e )
-							    {
-								System.err.println("Uh oh... burned by the fact that this InputStream " +
-										   " must be opened and closed by the same Thread.");
-								e.printStackTrace();
-								e.fillInStackTrace();
-								throw e;
-							    }
-						    }
-
-						    // backstop finalize()...
-						    // closing this stream is IMPORTANT
-						    // DON'T FORGET TO DO IT YOURSELF!
-						    public synchronized void finalize() throws IOException 
-						    {
-							if (! closed)
-							    {
-								System.err.println("Bad move. The thread that opened an InputStream" +
-										   " handed to it by DirectoryBasedPersistentStore" +
-										   " failed to close it, which means the read lock on" +
-										   " a file will never be released, and if the cached file" +
-										   " ever becomes stale and needs to be rewritten, all attempted" +
-										   " accesses will hang.");
-								this.close(); 
-							    }
-						    }
-						};
+					    try { super.close(); }
+					    finally 
+						{ fileLock.relinquishShared(); }
 					}
-				    catch (InterruptedException e)
+				    catch ( IllegalStateException e )
 					{
+					    System.err.println("Uh oh... burned by the fact that this InputStream " +
+							       " must be opened and closed by the same Thread.");
 					    e.printStackTrace();
-					    throw new InterruptedIOException( e.toString() );
+					    e.fillInStackTrace();
+					    throw e;
+					}
+				}
+
+				// backstop finalize()...
+				// closing this stream is IMPORTANT
+				// DON'T FORGET TO DO IT YOURSELF!
+				public synchronized void finalize() throws IOException 
+				{
+				    if (! closed)
+					{
+					    System.err.println("Bad move. The thread that opened an InputStream" +
+							       " handed to it by DirectoryBasedPersistentStore" +
+							       " failed to close it, which means the read lock on" +
+							       " a file will never be released, and if the cached file" +
+							       " ever becomes stale and needs to be rewritten, all attempted" +
+							       " accesses will hang.");
+					    this.close(); 
 					}
 				}
 			    };
 		    }
-		
+		catch ( IOException e )
+		    {
+			fileLock.relinquishShared();
+			throw e;
+		    }
+	    }
+	catch (InterruptedException e)
+	    {
+		e.printStackTrace();
+		throw new InterruptedIOException( e.toString() );
 	    }
-	finally
-	    { fileLock.relinquishShared(); }
     }
 
-    private void writeInstanceFile( ImageDataKey preciseKey, byte[] imageBytes ) throws Exception
+    /**
+     * Hard-links a retrieved instance file under pinDir, so that whoever we hand the
+     * link to reads what we retrieved, even if the instance is replaced or culled before
+     * they open it. Instance files are only ever replaced by renaming over them, never
+     * rewritten, so a link's contents never change. We delete pins once they are old
+     * enough that whoever had them has surely opened them.
+     *
+     * @return the pin, or null if the instance is no longer what we retrieved, or if we
+     *         could not link to it (e.g. a filesystem without hard links)
+     */
+    private File pin( File storageFile, SharedUseExclusiveUseLock fileLock, int length, long last_modified )
     {
+	long now = System.currentTimeMillis();
+	File pinned;
+	synchronized ( pins )
+	    {
+		expirePins( now );
+		pinned = new File( pinDir, PINNED_FILE_PREFIX + pin_count++ );
+	    }
+	try
+	    {
+		fileLock.acquireShared();
+		try
+		    {
+			if ( storageFile.length() != length || storageFile.lastModified() != last_modified )
+			    return null;
+			Files.createLink( pinned.toPath(), storageFile.toPath() );
+		    }
+		finally
+		    { fileLock.relinquishShared(); }
+	    }
+	catch ( InterruptedException e )
+	    {
+		Thread.currentThread().interrupt();
+		return null;
+	    }
+	catch ( Exception e ) // culled out from under us, or no hard links here
+	    { return null; }
+	synchronized ( pins )
+	    { pins.add( new Pin( pinned, now ) ); }
+	return pinned;
+    }
+
+    // MT: call only while holding pins' lock
+    private void expirePins( long now )
+    {
+	while (! pins.isEmpty() )
+	    {
+		Pin oldest = (Pin) pins.getFirst();
+		if ( now - oldest.pinned_at < PIN_MSECS )
+		    break;
+		pins.removeFirst();
+		oldest.file.delete(); // if we can't, it'll be cleared at our next startup
+	    }
+    }
+
+    // may return null, if the etag file has been culled, or if the
+    // instance was stored before we kept etags
+    private static String readETag( File etagFile ) throws IOException
+    {
+	if (! etagFile.exists() )
+	    return null;
+	else
+	    {
+		InputStream is = null;
+		try
+		    {
+			is = new FileInputStream( etagFile );
+			return InputStreamUtils.getContentsAsString( is, "ISO-8859-1" );
+		    }
+		catch ( FileNotFoundException e ) // culled out from under us
+		    { return null; }
+		finally
+		    { InputStreamUtils.attemptClose( is ); }
+	    }
+    }
+
+    // we write to a temporary file and rename, so that anyone reading
+    // an instance file without a lock (e.g. a container's sendfile) never
+    // sees a partially written image
+    private void writeAtomically( File storageFile, byte[] bytes ) throws Exception
+    {
+	File tmpFile = tmpFileFor( storageFile );
 	OutputStream os = null;
 	try
 	    {
-		File storageFile = findInstanceFile( preciseKey );
-		os = new BufferedOutputStream( new FileOutputStream( storageFile ), BUFFER_SIZE );
-		for (int i = 0, len = imageBytes.length; i < len; ++i)
-		    os.write( imageBytes[i] );
+		os = new BufferedOutputStream( new FileOutputStream( tmpFile ), BUFFER_SIZE );
+		os.write( bytes );
 		os.flush();
 	    }
 	finally
 	    { OutputStreamUtils.attemptClose( os );  }
+	moveIntoPlace( tmpFile, storageFile );
+    }
+
+    private void writeAtomically( File storageFile, ImageBuffer buffer ) throws Exception
+    {
+	File tmpFile = tmpFileFor( storageFile );
+	OutputStream os = null;
+	try
+	    {
+		// the buffer writes whole chunks, so we don't need to buffer again
+		os = new FileOutputStream( tmpFile );
+		buffer.writeTo( os );
+	    }
+	finally
+	    { OutputStreamUtils.attemptClose( os );  }
+	moveIntoPlace( tmpFile, storageFile );
+    }
+
+    private static File tmpFileFor( File storageFile )
+    { return new File( storageFile.getParentFile(), TMP_FILE_PREFIX + storageFile.getName() ); }
+
+    private static void moveIntoPlace( File tmpFile, File storageFile ) throws IOException
+    {
+	if (! tmpFile.renameTo( storageFile ) )
+	    {
+		// some platforms won't rename over an existing file
+		storageFile.delete();
+		if (! tmpFile.renameTo( storageFile ) )
+		    {
+			tmpFile.delete();
+			throw new IOException("Could not move " + tmpFile + " to " + storageFile + '.');
+		    }
+	    }
+    }
+
+    // replaced means the instance has just been (re)written, under its lock, so its size may
+    // have changed. otherwise, it was retrieved a little while ago, and may since have been culled,
+    // in which case the cull will find there's nothing to delete, and drop it from the index again.
+    // a size of SERVED_ELSEWHERE means we don't know whether the instance exists at all, so it's
+    // a use only of something we already know of
+    private synchronized void indexUsed( ImageDataKey key, long size, boolean replaced )
+    {
+	if ( policy == null )
+	    return;
+
+	if ( pendingUses != null )
+	    pendingUses.add( new PendingUse( key, size, replaced ) );
+	else if ( replaced )
+	    policy.stored( key, size );
+	else if ( size != SERVED_ELSEWHERE )
+	    policy.accessed( key, size );
+	else if ( policy.contains( key ) )
+	    policy.accessed( key, 0 ); // the policy already knows the size
+	accessed_since_journal = true;
+    }
+
+    private void recordAccess( ImageDataKey key, long size )
+    {
+	if ( policy == null )
+	    return;
+
+	// more threads than stripes share them, so whoever fills a stripe
+	// must empty it before letting go of its lock
+	AccessStripe stripe = accessStripes[ (int) Thread.currentThread().getId() & (ACCESS_STRIPES - 1) ];
+	AccessStripe full = null;
+	synchronized ( stripe )
+	    {
+		stripe.keys[ stripe.count ]  = key;
+		stripe.sizes[ stripe.count ] = size;
+		if ( ++stripe.count == ACCESS_STRIPE_SIZE )
+		    full = stripe.takeAll();
+	    }
+	if ( full != null )
+	    indexAccesses( full );
+    }
+
+    private void drainAccesses( AccessStripe stripe )
+    {
+	AccessStripe taken;
+	synchronized ( stripe )
+	    { taken = stripe.takeAll(); }
+	indexAccesses( taken );
+    }
+
+    private void indexAccesses( AccessStripe taken )
+    {
+	for (int i = 0; i < taken.count; ++i)
+	    indexUsed( taken.keys[i], taken.sizes[i], false );
+    }
+
+    private void drainAllAccesses()
+    {
+	for (int i = 0; i < ACCESS_STRIPES; ++i)
+	    drainAccesses( accessStripes[i] );
+    }
+
+    /**
+     * Records the index's order, what we'd cull first first, so that after
+     * a restart we cull what had been least-recently (or least-frequently...)
+     * used, rather than what was least-recently stored.
+     */
+    private void writeAccessJournal() throws Exception
+    {
+	drainAllAccesses();
+
+	List keys;
+	synchronized ( this )
+	    {
+		if (! accessed_since_journal )
+		    return;
+		keys = policy.keysInEvictionOrder();
+		accessed_since_journal = false;
+	    }
+
+	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	DataOutputStream dos = new DataOutputStream( baos );
+	dos.writeInt( ACCESS_JOURNAL_VERSION );
+	dos.writeInt( keys.size() );
+	for ( Iterator ii = keys.iterator(); ii.hasNext(); )
+	    {
+		ImageDataKey key = (ImageDataKey) ii.next();
+		String mimeType = key.getMimeType();
+		dos.writeUTF( key.getUid() );
+		dos.writeBoolean( mimeType != null );
+		if ( mimeType != null )
+		    dos.writeUTF( mimeType );
+		dos.writeInt( key.getWidth() );
+		dos.writeInt( key.getHeight() );
+	    }
+	dos.close();
+	writeAtomically( new File( storageDir, ACCESS_JOURNAL_FILE_NAME ), baos.toByteArray() );
+    }
+
+    // returns ImageDataKeys, what we'd cull first first, or an empty List if we have no usable journal
+    private List readAccessJournal()
+    {
+	List out = new ArrayList();
+	File journalFile = new File( storageDir, ACCESS_JOURNAL_FILE_NAME );
+	if (! journalFile.exists() )
+	    return out;
+
+	DataInputStream dis = null;
+	try
+	    {
+		dis = new DataInputStream( new BufferedInputStream( new FileInputStream( journalFile ), BUFFER_SIZE ) );
+		int version = dis.readInt();
+		if ( version != ACCESS_JOURNAL_VERSION )
+		    throw new IOException("Unsupported access journal version: " + version);
+		for (int i = 0, len = dis.readInt(); i < len; ++i)
+		    {
+			String uid = dis.readUTF();
+			String mimeType = ( dis.readBoolean() ? dis.readUTF() : null );
+			out.add( ImageDataKey.findKey( uid, mimeType, dis.readInt(), dis.readInt() ) );
+		    }
+		return out;
+	    }
+	catch ( IOException e )
+	    {
+		// we'll just order by when instances were stored
+		e.printStackTrace();
+		return new ArrayList();
+	    }
+	finally
+	    { InputStreamUtils.attemptClose( dis ); }
+    }
+
+    // MT: call only while holding key's lock
+    private synchronized boolean isIndexed( ImageDataKey key )
+    { return policy.contains( key ); }
+
+    /**
+     * Removes from the index, in the order our policy chooses, as many as
+     * max_count instances, but no more than needed to bring us within our budget.
+     */
+    private synchronized List takeVictims( int max_count )
+    {
+	List out = new ArrayList();
+	while ( policy.totalSize() > max_size_in_bytes && out.size() < max_count )
+	    {
+		ImageDataKey victim = policy.evict();
+		if ( victim == null )
+		    break;
+		out.add( victim );
+	    }
+	return out;
+    }
+
+    /**
+     * We walk the tree just once, at startup. Instances stored or retrieved
+     * while we walk are indexed after everything we find, as more recently used.
+     */
+    private void rebuildIndex()
+    {
+	synchronized ( this )
+	    { pendingUses = new ArrayList(); }
+
+	List oldestFirst;
+	try
+	    { oldestFirst = scanInstances(); }
+	catch ( IOException e )
+	    {
+		// we'll cull only what we see stored
+		// or retrieved. better than nothing.
+		e.printStackTrace();
+		oldestFirst = new ArrayList();
+	    }
+
+	// what the journal recorded as used comes after everything else, unless
+	// it was stored after the journal was written, which puts it later still
+	long journal_time = new File( storageDir, ACCESS_JOURNAL_FILE_NAME ).lastModified();
+	List journaled = readAccessJournal();
+
+	synchronized ( this )
+	    {
+		LinkedHashMap rebuilt = new LinkedHashMap( oldestFirst.size() * 2 ); // in insertion order
+		for ( Iterator ii = oldestFirst.iterator(); ii.hasNext(); )
+		    {
+			IndexCandidate candidate = (IndexCandidate) ii.next();
+			rebuilt.put( candidate.key, Long.valueOf( candidate.length ) );
+		    }
+		for ( Iterator ii = journaled.iterator(); ii.hasNext(); )
+		    {
+			Object key = ii.next();
+			Object size = rebuilt.remove( key );
+			if ( size != null )
+			    rebuilt.put( key, size );
+		    }
+		for ( Iterator ii = oldestFirst.iterator(); ii.hasNext(); )
+		    {
+			IndexCandidate candidate = (IndexCandidate) ii.next();
+			if ( candidate.last_modified > journal_time )
+			    rebuilt.put( candidate.key, rebuilt.remove( candidate.key ) );
+		    }
+		for ( Iterator ii = rebuilt.entrySet().iterator(); ii.hasNext(); )
+		    {
+			Map.Entry entry = (Map.Entry) ii.next();
+			policy.stored( (ImageDataKey) entry.getKey(), ((Long) entry.getValue()).longValue() );
+		    }
+
+		List uses = pendingUses;
+		pendingUses = null;
+		for ( Iterator ii = uses.iterator(); ii.hasNext(); )
+		    {
+			PendingUse use = (PendingUse) ii.next();
+			indexUsed( use.key, use.size, use.replaced );
+		    }
+	    }
+    }
+
+    // returns IndexCandidates, oldest first
+    private List scanInstances() throws IOException
+    {
+	List instanceFiles = new ArrayList();
+	DirectoryDescentUtils.addSubtree( storageDir, INSTANCES_ONLY_FILE_FILTER, false, instanceFiles );
+
+	Map uidsForDirs = new HashMap();
+	List oldestFirst = new ArrayList( instanceFiles.size() );
+	for ( Iterator ii = instanceFiles.iterator(); ii.hasNext(); )
+	    {
+		File instanceFile = (File) ii.next();
+		File instancesDir = instanceFile.getParentFile();
+		String uid = (String) uidsForDirs.get( instancesDir );
+		if ( uid == null )
+		    {
+			uid = readUid( instancesDir );
+			if ( uid == null ) // a migration still in progress, it will index the directory
+			    continue;
+			uidsForDirs.put( instancesDir, uid );
+		    }
+		ImageDataKey key = keyForInstanceFile( uid, instanceFile );
+		if ( key != null )
+		    oldestFirst.add( new IndexCandidate( key, instanceFile ) );
+	    }
+	Collections.sort( oldestFirst, ASC_LAST_MOD_COMPARATOR );
+	return oldestFirst;
+    }
+
+    /**
+     * @return a summary of how well the cache has served since startup
+     */
+    String statsSummary()
+    {
+	long num_hits = hits.sum();
+	long num_requests = num_hits + misses.sum();
+	long num_hit_bytes = hit_bytes.sum();
+	long num_requested_bytes = num_hit_bytes + stored_bytes.sum();
+	return 
+	    "eviction policy: " + ( policy == null ? "none" : policy.getName() ) +
+	    ", hit ratio: " + ( num_requests == 0 ? "n/a" : String.valueOf( (double) num_hits / num_requests ) ) +
+	    " (" + num_hits + '/' + num_requests + ')' +
+	    ", byte hit ratio: " + ( num_requested_bytes == 0 ? "n/a" : String.valueOf( (double) num_hit_bytes / num_requested_bytes ) ) +
+	    " (" + num_hit_bytes + '/' + num_requested_bytes + ')';
+    }
+
+    // MT: call only while holding uid's folder lock
+    private void indexDir( String uid, File instancesDir ) throws Exception
+    {
+	File[] instanceFiles = instancesDir.listFiles( INSTANCES_ONLY_FILE_FILTER );
+	for (int i = 0, len = ( instanceFiles == null ? 0 : instanceFiles.length ); i < len; ++i)
+	    {
+		ImageDataKey key = keyForInstanceFile( uid, instanceFiles[i] );
+		if ( key != null )
+		    {
+			SharedUseExclusiveUseLock fileLock = findLock( key );
+			fileLock.acquireShared();
+			try
+			    { indexUsed( key, instanceFiles[i].length() + etagFileForInstanceFile( instanceFiles[i] ).length(), false ); }
+			finally
+			    { fileLock.relinquishShared(); }
+		    }
+	    }
+    }
+
+    private File fileForKey( ImageDataKey key ) throws IOException
+    {
+	String uid = key.getUid();
+	return ( key == originalKey( uid ) ? findOriginalFile( uid ) : findInstanceFile( key ) );
     }
 
     private SharedUseExclusiveUseLock findLock( Object keyOrUid )
@@ -399,6 +1055,107 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
     private File findInstancesDir( String uid )
     { return new File( storageDir, subdirName( uid ) ); }
 
+    // MT: call only while holding uid's folder lock exclusively
+    //
+    // the directory's name is just a hash, so we record
+    // the uid it belongs to alongside what we store for it
+    private File ensureInstancesDir( String uid ) throws Exception
+    {
+	File instancesDir = findInstancesDir( uid );
+	File uidFile = new File( instancesDir, UID_FILE_NAME );
+	if (! uidFile.exists() )
+	    {
+		instancesDir.mkdirs();
+		writeAtomically( uidFile, uid.getBytes( "UTF8" ) );
+	    }
+	return instancesDir;
+    }
+
+    /**
+     * Version 1 caches kept a directory per uid, named after the whole
+     * (URL-encoded) uid, all in one flat directory. We move each into its
+     * place in the current layout, unless something has already been stored
+     * there, in which case the old directory is just deleted. Until an entry
+     * has been moved, lookups of it just miss.
+     */
+    private void migrateFromV1( File v1Dir )
+    {
+	int migrated = 0;
+	int discarded = 0;
+	File[] oldDirs = v1Dir.listFiles();
+	for (int i = 0, len = ( oldDirs == null ? 0 : oldDirs.length ); i < len; ++i)
+	    {
+		File oldDir = oldDirs[i];
+		String name = oldDir.getName();
+		try
+		    {
+			String[] contents = oldDir.list();
+			if ( contents != null && contents.length > 0 && name.endsWith( V1_SUBDIR_SUFFIX ) )
+			    {
+				String uid = URLDecoder.decode( name.substring( 0, name.length() - V1_SUBDIR_SUFFIX.length() ), "UTF8" );
+				if ( moveV1Dir( uid, oldDir ) )
+				    {
+					++migrated;
+					continue;
+				    }
+			    }
+		    }
+		catch ( Exception e )
+		    { e.printStackTrace(); }
+
+		deleteTree( oldDir );
+		++discarded;
+	    }
+	deleteTree( v1Dir );
+	System.err.println( this + ": Migrated " + migrated + " cache entries from " + v1Dir + ", discarded " + discarded + '.' );
+    }
+
+    private boolean moveV1Dir( String uid, File oldDir ) throws Exception
+    {
+	SharedUseExclusiveUseLock folderLock = findLock( uid );
+	folderLock.acquireExclusive();
+	try
+	    {
+		File instancesDir = findInstancesDir( uid );
+		if ( instancesDir.exists() )
+		    return false;
+		instancesDir.getParentFile().mkdirs();
+		if (! oldDir.renameTo( instancesDir ) )
+		    return false;
+		ensureInstancesDir( uid );
+		indexDir( uid, instancesDir );
+		return true;
+	    }
+	finally
+	    { folderLock.relinquishExclusive(); }
+    }
+
+    // may return null, if the directory hasn't been fully set up yet
+    private static String readUid( File instancesDir ) throws IOException
+    {
+	InputStream is = null;
+	try
+	    {
+		is = new FileInputStream( new File( instancesDir, UID_FILE_NAME ) );
+		return InputStreamUtils.getContentsAsString( is, "UTF8" );
+	    }
+	catch ( FileNotFoundException e )
+	    { return null; }
+	finally
+	    { InputStreamUtils.attemptClose( is ); }
+    }
+
+    private static void deleteTree( File file )
+    {
+	File[] children = file.listFiles();
+	if ( children != null )
+	    {
+		for (int i = 0; i < children.length; ++i)
+		    deleteTree( children[i] );
+	    }
+	file.delete();
+    }
+
     private File findCreateStorageDir( File parentDir )
     {
 	File sdir = new File( parentDir, STORAGE_DIR_BASENAME + CACHE_FORMAT_VERSION );
@@ -413,38 +1170,107 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	return new File( instancesDir, instanceFileName( key ) );
     }
 
+    private File findETagFile( ImageDataKey key ) throws IOException
+    {
+	File instancesDir = findInstancesDir( key.getUid() );
+	return new File( instancesDir, etagFileName( key ) );
+    }
+
+    // the original's lock must be distinct from the lock on uid's directory,
+    // and from the locks on all scaled instances
+    private static ImageDataKey originalKey( String uid )
+    { return ImageDataKey.findKey( uid, null, -1, -1 ); }
+
+    private File findOriginalFile( String uid )
+    { return new File( findInstancesDir( uid ), INSTANCE_FILE_PREFIX + ORIGINAL_FILE_SUFFIX ); }
+
+    private File findOriginalETagFile( String uid )
+    { return new File( findInstancesDir( uid ), ETAG_FILE_PREFIX + ORIGINAL_FILE_SUFFIX ); }
+
+    // the inverse of fileName( INSTANCE_FILE_PREFIX, ... ), or of findOriginalFile( ... ).
+    // returns null if instanceFile's name is not one we'd have given it
+    private static ImageDataKey keyForInstanceFile( String uid, File instanceFile )
+    {
+	String spec = instanceFile.getName().substring( INSTANCE_FILE_PREFIX.length() );
+	if ( spec.equals( ORIGINAL_FILE_SUFFIX ) )
+	    return originalKey( uid );
+
+	// <width>_x_<height>_<mime type, with its slash as a dot>
+	int x = spec.indexOf( "_x_" );
+	int mime_start = ( x < 0 ? -1 : spec.indexOf( '_', x + 3 ) );
+	if ( mime_start < 0 )
+	    return null;
+	try
+	    {
+		int width = Integer.parseInt( spec.substring( 0, x ) );
+		int height = Integer.parseInt( spec.substring( x + 3, mime_start ) );
+		String dottyMimeType = spec.substring( mime_start + 1 );
+		String mimeType;
+		if ( dottyMimeType.equals( UNDEFINED_DOTTY_MIME_TYPE ) )
+		    mimeType = null;
+		else
+		    {
+			// the major type never has a dot of its own
+			int dot = dottyMimeType.indexOf( '.' );
+			if ( dot < 0 )
+			    return null;
+			mimeType = dottyMimeType.substring( 0, dot ) + '/' + dottyMimeType.substring( dot + 1 );
+		    }
+		return ImageDataKey.findKey( uid, mimeType, width, height );
+	    }
+	catch ( NumberFormatException e )
+	    { return null; }
+    }
+
+    private static File etagFileForInstanceFile( File instanceFile )
+    { return new File( instanceFile.getParentFile(), ETAG_FILE_PREFIX + instanceFile.getName().substring( INSTANCE_FILE_PREFIX.length() ) ); }
+
     private File findOriginalMetadataFile( String uid ) throws IOException
     {
  	File instancesDir = findInstancesDir( uid );
  	return new File( instancesDir, originalMetadataFileName() );
     }
 
-    private static String subdirName( ImageDataKey key )
-    { return subdirName( key.getUid() ); }
+    private File findOriginRecordFile( String uid ) throws IOException
+    {
+ 	File instancesDir = findInstancesDir( uid );
+ 	return new File( instancesDir, originRecordFileName() );
+    }
 
+    // fixed-width fan-out, two levels of 256 directories, so that no
+    // directory gets huge and no name gets long, however long the uid
     private static String subdirName( String uid )
     {
 	try
-	    { return URLEncoder.encode( uid, "UTF8" ) + "_cache"; }
-	catch ( UnsupportedEncodingException e ) //
+	    { 
+		String hash = SsimUtils.hex( MessageDigest.getInstance( "SHA-1" ).digest( uid.getBytes( "UTF8" ) ) );
+		return hash.substring( 0, 2 ) + File.separatorChar + hash.substring( 2, 4 ) + File.separatorChar + hash;
+	    }
+	catch ( Exception e )
 	    {
 		e.printStackTrace();
-		throw new InternalError("UTF8 not supported???");
+		throw new InternalError("SHA-1 or UTF8 not supported???");
 	    }
     }
 
     // obviously, if this changes, INSTANCES_ONLY_FILE_FILTER
     //  has to change as well
     private static String instanceFileName( ImageDataKey key )
-    { return fileName( "instance_", key ); }
+    { return fileName( INSTANCE_FILE_PREFIX, key ); }
+
+    private static String etagFileName( ImageDataKey key )
+    { return fileName( ETAG_FILE_PREFIX, key ); }
 
     private static String originalMetadataFileName()
     { return "original_metadata.ser"; }
 
+    private static String originRecordFileName()
+    { return "origin_record.ser"; }
+
     private static String fileName( String pfx, ImageDataKey key )
     {
 	String mimeType = key.getMimeType();
-	String dottyMimeType = ( mimeType == null ? "undefined.mime.type" : slashesToDots( mimeType ) );
+	String dottyMimeType = ( mimeType == null ? UNDEFINED_DOTTY_MIME_TYPE : slashesToDots( mimeType ) );
 	return pfx + key.getWidth() + "_x_" + key.getHeight() + '_' + dottyMimeType;
     }
 
@@ -460,10 +1286,83 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 	return sb.toString();
     }
 
+    final static class PendingUse
+    {
+	ImageDataKey key;
+	long         size;
+	boolean      replaced;
+
+	PendingUse( ImageDataKey key, long size, boolean replaced )
+	{
+	    this.key      = key;
+	    this.size     = size;
+	    this.replaced = replaced;
+	}
+    }
+
+    final static class Pin
+    {
+	File file;
+	long pinned_at;
+
+	Pin( File file, long pinned_at )
+	{
+	    this.file      = file;
+	    this.pinned_at = pinned_at;
+	}
+    }
+
+    final static class AccessStripe
+    {
+	ImageDataKey[] keys;
+	long[]         sizes;
+	int            count;
+
+	AccessStripe()
+	{ this( new ImageDataKey[ ACCESS_STRIPE_SIZE ], new long[ ACCESS_STRIPE_SIZE ], 0 ); }
+
+	AccessStripe( ImageDataKey[] keys, long[] sizes, int count )
+	{
+	    this.keys  = keys;
+	    this.sizes = sizes;
+	    this.count = count;
+	}
+
+	// MT: call only while holding this' lock
+	//
+	// returns what we've recorded, as a stripe of its own, and leaves us empty
+	AccessStripe takeAll()
+	{
+	    AccessStripe out = new AccessStripe( keys, sizes, count );
+	    keys  = new ImageDataKey[ ACCESS_STRIPE_SIZE ];
+	    sizes = new long[ ACCESS_STRIPE_SIZE ];
+	    count = 0;
+	    return out;
+	}
+    }
+
+    final static class IndexCandidate
+    {
+	ImageDataKey key;
+	File         file;
+	long         last_modified;
+	long         length;
+
+	IndexCandidate( ImageDataKey key, File file )
+	{
+	    this.key           = key;
+	    this.file          = file;
+	    this.last_modified = file.lastModified();
+	    this.length        = file.length() + etagFileForInstanceFile( file ).length();
+	}
+    }
+
     class CullThread extends Thread
     {
 	boolean should_stop = false;
 
+	long requests_at_last_report = 0;
+
 	CullThread()
 	{
 	    this.setName("DirectoryBasedPersistentStore.CullThread@" + Integer.toString( System.identityHashCode( this ), 16 ));
@@ -478,21 +1377,37 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 
 	public void run()
 	{
+	    rebuildIndex();
+
+	    long next_cull    = System.currentTimeMillis() + cull_delay_in_msecs;
+	    long next_journal = ( journal_interval_in_msecs > 0 ? System.currentTimeMillis() + journal_interval_in_msecs : Long.MAX_VALUE );
 	    while (true)
 		{
 		    try
 			{
-			    Thread.sleep( cull_delay_in_msecs );
+			    long now = System.currentTimeMillis();
+			    Thread.sleep( Math.max( 0, Math.min( next_cull, next_journal ) - now ) );
 			    if ( shouldStop() )
 				break;
-			    cull();
+
+			    now = System.currentTimeMillis();
+			    if ( now >= next_journal )
+				{
+				    next_journal = now + journal_interval_in_msecs;
+				    writeAccessJournal();
+				}
+			    if ( now >= next_cull )
+				{
+				    next_cull = now + cull_delay_in_msecs;
+				    cull();
+				}
 			}
 		    catch ( InterruptedException e )
 			{ 
 			    if ( shouldStop() )
 				break;
 			}
-		    catch ( IOException e )
+		    catch ( Exception e )
 			{
 			    // bad news, but what can we do?
 			    // better luck next time, maybe.
@@ -501,50 +1416,60 @@ final class DirectoryBasedPersistentStore implements SsimPersistentStore
 		}
 	}
 
+	/**
+	 * Runs alongside retrieves and stores, and never looks at the disk to
+	 * decide what to delete. We take instances from the index, in the order our
+	 * policy chooses, in small batches, then delete each under just the lock that
+	 * guards it, unless it has been used, and so re-indexed, in between.
+	 */
 	private void cull() throws InterruptedException, IOException
 	{
 	    //System.err.println("Culling...");
-	    globalLock.acquireExclusive();
+	    synchronized ( pins )
+		{ expirePins( System.currentTimeMillis() ); }
+	    while ( true )
+		{
+		    drainAllAccesses();
+		    List batch = takeVictims( CULL_BATCH_SIZE );
+		    if ( batch.isEmpty() )
+			break;
+		    for ( Iterator ii = batch.iterator(); ii.hasNext(); )
+			cullOne( (ImageDataKey) ii.next() );
+
+		    Thread.sleep( CULL_BATCH_PAUSE_MSECS );
+		    if ( shouldStop() )
+			break;
+		}
+	    //System.err.println("Cull completed.");
+
+	    // so that policies can be compared in production
+	    long num_requests = hits.sum() + misses.sum();
+	    if ( num_requests != requests_at_last_report )
+		{
+		    System.err.println( DirectoryBasedPersistentStore.this + ": " + statsSummary() );
+		    requests_at_last_report = num_requests;
+		}
+	}
+
+	private void cullOne( ImageDataKey key ) throws InterruptedException, IOException
+	{
+	    SharedUseExclusiveUseLock fileLock = findLock( key );
+	    fileLock.acquireExclusive();
 	    try
 		{
-		    long current_size_in_bytes = FileUtils.diskSpaceUsed( storageDir );
-		    //System.err.println("current_size_in_bytes: " + current_size_in_bytes + "   max_size_in_bytes: " + max_size_in_bytes);
-		    if ( current_size_in_bytes > max_size_in_bytes )
-			{
-			    TreeSet oldestFirst = new TreeSet( ASC_LAST_MOD_COMPARATOR );
-			    DirectoryDescentUtils.addSubtree( storageDir, INSTANCES_ONLY_FILE_FILTER, false, oldestFirst );
-			    TreeSet biggestFirst = new TreeSet( DESC_SIZE_COMPARATOR );
-			    long temp_size = current_size_in_bytes;
-			    for ( Iterator ii = oldestFirst.iterator(); temp_size > max_size_in_bytes && ii.hasNext(); )
-				{
-				    File deadMeat = (File) ii.next();
-				    long score = deadMeat.length();
-				    biggestFirst.add( deadMeat );
-				    temp_size -= score;
-				}
-			    temp_size = current_size_in_bytes;
-			    for ( Iterator ii = biggestFirst.iterator(); temp_size > max_size_in_bytes && ii.hasNext(); )
-				{
-				    File deadMeat = (File) ii.next();
-				    long score = deadMeat.length();
-			    
-				    //System.err.println("deleting... " + deadMeat);
-				    if ( deadMeat.delete() )
-					temp_size -= score;
-				    
-				    //very temporary test code, just to be sure I haven't fucked
-				    //up. I don't want to recursively delete root by mistake....
-				    //
- 				    //{
- 				    //   System.err.println("Want to delete " + deadMeat);
- 				    //   temp_size -= score;
- 				    //}
-				}
-			}
+		    // stored or retrieved since we took it. a retrieve records its access
+		    // while it holds key's lock, so by now any access is in a stripe
+		    drainAllAccesses();
+		    if ( isIndexed( key ) )
+			return;
+
+		    File deadMeat = fileForKey( key );
+		    //System.err.println("deleting... " + deadMeat);
+		    if ( deadMeat.delete() )
+			etagFileForInstanceFile( deadMeat ).delete();
 		}
 	    finally
-		{ globalLock.relinquishExclusive(); }
-	    //System.err.println("Cull completed.");
+		{ fileLock.relinquishExclusive(); }
 	}
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.util.*;
+
+/**
+ * Decides which cached images a store gives up first, once it has exceeded
+ * its budget. The store tells the policy what it stores and what it serves,
+ * and asks it for victims, one at a time, until it's back within budget.
+ *
+ * Implementations need not be thread-safe. The store calls them only while
+ * holding a lock of its own.
+ */
+interface EvictionPolicy
+{
+    /**
+     * Notes that key has just been stored, or stored again, taking up size bytes.
+     */
+    public void stored( ImageDataKey key, long size );
+
+    /**
+     * Notes that key, taking up size bytes, has just been served. If the policy
+     * doesn't know of key (the store may have missed telling it), it should
+     * treat key as just stored.
+     */
+    public void accessed( ImageDataKey key, long size );
+
+    public boolean contains( ImageDataKey key );
+
+    /**
+     * Forgets key, and returns the next key to evict,
+     * or null if the policy knows of nothing.
+     */
+    public ImageDataKey evict();
+
+    /**
+     * @return the total size of all the keys the policy knows of
+     */
+    public long totalSize();
+
+    /**
+     * @return a snapshot of the keys the policy knows of, those it
+     *         would evict first first, so that if they are stored again in
+     *         that order after a restart, the policy ends up roughly where it was
+     */
+    public List keysInEvictionOrder();
+
+    /**
+     * @return the name by which the policy is chosen, "lru", "lfu", "tinylfu", or "gdsf"
+     */
+    public String getName();
+}
@@ -0,0 +1,127 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+/**
+ * Estimates how often each of many keys has been seen recently, in a 
+ * fixed, small amount of memory, so that a cache can decide whether a
+ * newcomer is worth more than the entry it would displace (the "TinyLFU"
+ * admission policy). Counts are kept in a count-min sketch of 4-bit counters, 
+ * four per key, and all are halved periodically, so that old popularity fades.
+ *
+ * Not thread-safe.
+ */
+final class FrequencySketch
+{
+    final static long RESET_MASK = 0x7777777777777777L;
+    final static long ONE_MASK   = 0x1111111111111111L;
+
+    final static long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    long[] table;       // sixteen 4-bit counters per long
+    int    table_mask;
+    int    sample_size; // we halve all counters after this many increments
+    int    size = 0;
+
+    /**
+     * @param expected_entries roughly how many keys the cache holds
+     */
+    FrequencySketch( int expected_entries )
+    {
+	int len = 16;
+	while ( len < expected_entries && len < (1 << 30) )
+	    len <<= 1;
+	this.table       = new long[ len ];
+	this.table_mask  = len - 1;
+	this.sample_size = 10 * len;
+    }
+
+    /**
+     * @return the estimated number of times hash was seen recently, at most 15
+     */
+    public int frequency( int hash )
+    {
+	hash = spread( hash );
+	int start = (hash & 3) << 2;
+	int out   = Integer.MAX_VALUE;
+	for (int i = 0; i < 4; ++i)
+	    {
+		int index  = indexOf( hash, i );
+		int offset = (start + i) << 2;
+		out = Math.min( out, (int) ((table[index] >>> offset) & 0xfL) );
+	    }
+	return out;
+    }
+
+    public void increment( int hash )
+    {
+	hash = spread( hash );
+	int start = (hash & 3) << 2;
+	boolean added = false;
+	for (int i = 0; i < 4; ++i)
+	    added |= incrementAt( indexOf( hash, i ), start + i );
+	if ( added && ++size == sample_size )
+	    reset();
+    }
+
+    // counters saturate at 15
+    private boolean incrementAt( int index, int counter )
+    {
+	int  offset = counter << 2;
+	long mask   = 0xfL << offset;
+	if ( (table[index] & mask) != mask )
+	    {
+		table[index] += (1L << offset);
+		return true;
+	    }
+	else
+	    return false;
+    }
+
+    private void reset()
+    {
+	int odd = 0;
+	for (int i = 0; i < table.length; ++i)
+	    {
+		odd += Long.bitCount( table[i] & ONE_MASK );
+		table[i] = (table[i] >>> 1) & RESET_MASK;
+	    }
+	size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf( int hash, int i )
+    {
+	long h = (hash + SEEDS[i]) * SEEDS[i];
+	h += (h >>> 32);
+	return ((int) h) & table_mask;
+    }
+
+    // the hashes of similar keys are often similar
+    private static int spread( int x )
+    {
+	x = ((x >>> 16) ^ x) * 0x45d9f3b;
+	x = ((x >>> 16) ^ x) * 0x45d9f3b;
+	return (x >>> 16) ^ x;
+    }
+}
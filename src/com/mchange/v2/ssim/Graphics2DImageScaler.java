@@ -0,0 +1,47 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Scales images by simply drawing them, via Java2D, at the new size.
+ * Fast for image types with native support, but it can look rough
+ * when images are scaled way down.
+ */
+public final class Graphics2DImageScaler implements ImageScaler
+{
+    public BufferedImage scale( BufferedImage source, int width, int height, int imageType )
+    {
+	BufferedImage scaledImage = new BufferedImage( width, height, imageType );
+	Graphics2D g2d = (Graphics2D) scaledImage.getGraphics();
+	// the default, nearest-neighbor interpolation looks awful when we've subsampled
+	g2d.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+	g2d.setRenderingHint( RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY );
+	g2d.drawImage( source, 0, 0, width, height, null );
+	g2d.dispose();
+	return scaledImage;
+    }
+}
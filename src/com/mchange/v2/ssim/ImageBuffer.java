@@ -0,0 +1,202 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.io.*;
+import java.security.*;
+
+/**
+ * A growable buffer of encoded image bytes, held in fixed-size chunks
+ * drawn from a shared pool, rather than in one ever-reallocated array.
+ * Once written, a buffer may be shared by reference, read-only, among
+ * several consumers (e.g. a response and a store). Each consumer 
+ * release()s when it is done, and once every reference is released,
+ * the chunks go back to the pool.
+ *
+ * Writing is not thread-safe, and must be complete before a buffer is shared.
+ */
+final class ImageBuffer extends OutputStream
+{
+    final static int CHUNK_SIZE       = 64 * 1024;
+    final static int MAX_POOLED_CHUNKS = 256; // 16M
+
+    // MT: thread-safe
+    final static BufferPool chunkPool = new BufferPool( CHUNK_SIZE, MAX_POOLED_CHUNKS );
+
+    byte[][] chunks = new byte[4][];
+    int      num_chunks = 0;
+    int      size = 0;
+
+    // MT: protected by this' lock
+    int    ref_count = 1; 
+    String etag      = null;
+
+    public void write( int b )
+    {
+	int offset = size % CHUNK_SIZE;
+	if ( offset == 0 )
+	    addChunk();
+	chunks[ num_chunks - 1 ][ offset ] = (byte) b;
+	++size;
+    }
+
+    public void write( byte[] b, int off, int len )
+    {
+	while ( len > 0 )
+	    {
+		int offset = size % CHUNK_SIZE;
+		if ( offset == 0 )
+		    addChunk();
+		int n = Math.min( len, CHUNK_SIZE - offset );
+		System.arraycopy( b, off, chunks[ num_chunks - 1 ], offset, n );
+		size += n;
+		off  += n;
+		len  -= n;
+	    }
+    }
+
+    private void addChunk()
+    {
+	checkLive();
+	if ( num_chunks == chunks.length )
+	    {
+		byte[][] grown = new byte[ chunks.length * 2 ][];
+		System.arraycopy( chunks, 0, grown, 0, num_chunks );
+		chunks = grown;
+	    }
+	chunks[ num_chunks++ ] = chunkPool.checkout();
+    }
+
+    public int size()
+    { return size; }
+
+    public void writeTo( OutputStream os ) throws IOException
+    {
+	checkLive();
+	for (int i = 0, remaining = size; remaining > 0; ++i)
+	    {
+		int n = Math.min( remaining, CHUNK_SIZE );
+		os.write( chunks[i], 0, n );
+		remaining -= n;
+	    }
+    }
+
+    public InputStream getInputStream()
+    {
+	checkLive();
+	return new ChunkInputStream();
+    }
+
+    /**
+     * @return a strong entity tag for the buffer's contents, 
+     *         the same as SsimUtils.strongETag() would compute
+     */
+    public synchronized String getETag()
+    {
+	if ( etag == null )
+	    {
+		checkLive();
+		try
+		    {
+			MessageDigest md = MessageDigest.getInstance( "MD5" );
+			for (int i = 0, remaining = size; remaining > 0; ++i)
+			    {
+				int n = Math.min( remaining, CHUNK_SIZE );
+				md.update( chunks[i], 0, n );
+				remaining -= n;
+			    }
+			etag = SsimUtils.quotedHex( md.digest() );
+		    }
+		catch ( NoSuchAlgorithmException e )
+		    {
+			e.printStackTrace();
+			throw new InternalError("MD5 not supported???");
+		    }
+	    }
+	return etag;
+    }
+
+    public synchronized void retain()
+    {
+	checkLive();
+	++ref_count;
+    }
+
+    public synchronized void release()
+    {
+	if ( ref_count <= 0 )
+	    throw new IllegalStateException( "ImageBuffer released more times than retained!" );
+	if ( --ref_count == 0 )
+	    {
+		for (int i = 0; i < num_chunks; ++i)
+		    chunkPool.checkin( chunks[i] );
+		chunks     = null;
+		num_chunks = 0;
+	    }
+    }
+
+    // the chunks of released buffers may already belong to someone else
+    private synchronized void checkLive()
+    {
+	if ( ref_count <= 0 )
+	    throw new IllegalStateException( "ImageBuffer used after it was released!" );
+    }
+
+    // reads are not synchronized, but are only permitted while the reader holds a reference
+    final class ChunkInputStream extends InputStream
+    {
+	int pos = 0;
+
+	public int read()
+	{
+	    if ( pos >= size )
+		return -1;
+	    else
+		{
+		    int b = chunks[ pos / CHUNK_SIZE ][ pos % CHUNK_SIZE ] & 0xFF;
+		    ++pos;
+		    return b;
+		}
+	}
+
+	public int read( byte[] b, int off, int len )
+	{
+	    if ( len == 0 )
+		return 0;
+	    else if ( pos >= size )
+		return -1;
+	    else
+		{
+		    int offset = pos % CHUNK_SIZE;
+		    int n = Math.min( len, Math.min( CHUNK_SIZE - offset, size - pos ) );
+		    System.arraycopy( chunks[ pos / CHUNK_SIZE ], offset, b, off, n );
+		    pos += n;
+		    return n;
+		}
+	}
+
+	public int available()
+	{ return size - pos; }
+    }
+}
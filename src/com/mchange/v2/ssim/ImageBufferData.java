@@ -0,0 +1,63 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.io.*;
+
+/**
+ * Image data held in a (pooled) ImageBuffer. This takes over one reference
+ * to the buffer, and gives it back on release().
+ */
+final class ImageBufferData extends AbstractImageData
+{
+    ImageBuffer buffer; // null once released
+
+    public ImageBufferData(String mimeType, ImageBuffer buffer, long timestamp, int width, int height)
+    {
+	super( mimeType, timestamp, buffer.size(), width, height );
+	this.buffer = buffer;
+    }
+
+    public synchronized InputStream getInputStream() throws IOException
+    { return liveBuffer().getInputStream(); }
+
+    public synchronized String getETag()
+    { return liveBuffer().getETag(); }
+
+    public synchronized void release()
+    {
+	if ( buffer != null )
+	    {
+		buffer.release();
+		buffer = null;
+	    }
+    }
+
+    private ImageBuffer liveBuffer() throws IllegalStateException
+    {
+	if ( buffer == null )
+	    throw new IllegalStateException( "ImageBufferData used after release()." );
+	return buffer;
+    }
+}
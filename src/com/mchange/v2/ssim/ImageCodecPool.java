@@ -0,0 +1,220 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import javax.imageio.*;
+import javax.imageio.event.*;
+import javax.imageio.spi.*;
+import javax.imageio.stream.*;
+
+/**
+ * Keeps idle ImageReaders and ImageWriters, by format, so that decoding
+ * and encoding don't have to search the ImageIO service registry and construct
+ * fresh codecs for every image. Codecs are reset() when they are checked
+ * back in, and while checked out, log any non-fatal warnings.
+ *
+ * Checked-out codecs should always be checked back in, even if
+ * decoding or encoding fails.
+ */
+final class ImageCodecPool
+{
+    final static int MAX_IDLE_PER_FORMAT = 8;
+
+    // MT: protected by class' lock
+    final static Map readerSpisByMimeType = new HashMap(); //mime types (as claimed by ImageData) to ImageReaderSpis
+    final static Map idleReaders          = new HashMap(); //ImageReaderSpis to LinkedLists of idle ImageReaders
+    final static Map idleWriters          = new HashMap(); //mime types to LinkedLists of idle ImageWriters
+
+    // MT: stateless
+    final static IIOReadWarningListener READ_WARNING_LOGGER = new IIOReadWarningListener()
+	{
+	    public void warningOccurred( ImageReader source, String warning )
+	    { System.err.println( "SSIM: Warning while decoding image [" + formatName( source.getOriginatingProvider() ) + "]: " + warning ); }
+	};
+
+    // MT: stateless
+    final static IIOWriteWarningListener WRITE_WARNING_LOGGER = new IIOWriteWarningListener()
+	{
+	    public void warningOccurred( ImageWriter source, int imageIndex, String warning )
+	    { System.err.println( "SSIM: Warning while encoding image [" + formatName( source.getOriginatingProvider() ) + "]: " + warning ); }
+	};
+
+    /**
+     * Unless ImageIO has been told to cache streams on disk, we make
+     * memory-cached streams directly, rather than asking the service registry.
+     */
+    static ImageInputStream createImageInputStream( InputStream is ) throws IOException
+    {
+	if ( ImageIO.getUseCache() )
+	    return ImageIO.createImageInputStream( is );
+	else
+	    return new MemoryCacheImageInputStream( is );
+    }
+
+    static ImageOutputStream createImageOutputStream( OutputStream os ) throws IOException
+    {
+	if ( ImageIO.getUseCache() )
+	    return ImageIO.createImageOutputStream( os );
+	else
+	    return new MemoryCacheImageOutputStream( os );
+    }
+
+    /**
+     * @param mimeTypeHint the type we expect the image to be, which we check
+     *                     against the stream, as origins sometimes lie
+     *
+     * @return a reader that can decode iis, or null if there is none
+     */
+    static ImageReader checkoutReader( ImageInputStream iis, String mimeTypeHint ) throws IOException
+    {
+	ImageReaderSpi spi;
+	synchronized ( ImageCodecPool.class )
+	    { spi = (mimeTypeHint == null ? null : (ImageReaderSpi) readerSpisByMimeType.get( mimeTypeHint )); }
+
+	// canDecodeInput(...) just peeks at the header, and resets the stream
+	if ( spi == null || !spi.canDecodeInput( iis ) )
+	    {
+		Iterator ii = ImageIO.getImageReaders( iis );
+		if (! ii.hasNext() )
+		    return null;
+		ImageReader fresh = (ImageReader) ii.next();
+		spi = fresh.getOriginatingProvider();
+		if ( spi == null ) //an unpoolable reader, it's all yours
+		    return prepare( fresh );
+
+		synchronized ( ImageCodecPool.class )
+		    {
+			if ( mimeTypeHint != null && !readerSpisByMimeType.containsKey( mimeTypeHint ) )
+			    readerSpisByMimeType.put( mimeTypeHint, spi );
+		    }
+
+		ImageReader pooled = pollIdle( idleReaders, spi );
+		if ( pooled == null )
+		    return prepare( fresh );
+		else
+		    {
+			fresh.dispose();
+			return prepare( pooled );
+		    }
+	    }
+	else
+	    {
+		ImageReader pooled = pollIdle( idleReaders, spi );
+		return prepare( pooled == null ? spi.createReaderInstance() : pooled );
+	    }
+    }
+
+    static void checkinReader( ImageReader reader )
+    {
+	ImageReaderSpi spi = reader.getOriginatingProvider();
+	try
+	    {
+		reader.reset(); //also removes our warning listener
+		if ( spi != null && offerIdle( idleReaders, spi, reader ) )
+		    return;
+	    }
+	catch ( RuntimeException e ) //we won't reuse a reader that can't be reset
+	    { e.printStackTrace(); }
+	reader.dispose();
+    }
+
+    /**
+     * @return a writer of the given type that can encode image, or null if there is none
+     */
+    static ImageWriter checkoutWriter( String mimeType, RenderedImage image )
+    {
+	ImageWriter writer = (ImageWriter) pollIdle( idleWriters, mimeType );
+	if ( writer == null )
+	    {
+		Iterator ii = ImageIO.getImageWritersByMIMEType( mimeType );
+		if (! ii.hasNext() )
+		    return null;
+		writer = (ImageWriter) ii.next();
+	    }
+
+	ImageWriterSpi spi = writer.getOriginatingProvider();
+	if ( spi != null && !spi.canEncodeImage( image ) )
+	    {
+		checkinWriter( mimeType, writer );
+		return null;
+	    }
+
+	writer.addIIOWriteWarningListener( WRITE_WARNING_LOGGER );
+	return writer;
+    }
+
+    static void checkinWriter( String mimeType, ImageWriter writer )
+    {
+	try
+	    {
+		writer.reset(); //also removes our warning listener
+		if ( offerIdle( idleWriters, mimeType, writer ) )
+		    return;
+	    }
+	catch ( RuntimeException e ) //we won't reuse a writer that can't be reset
+	    { e.printStackTrace(); }
+	writer.dispose();
+    }
+
+    private static String formatName( ImageReaderWriterSpi spi )
+    { return ( spi == null ? "unknown format" : spi.getFormatNames()[0] ); }
+
+    private static ImageReader prepare( ImageReader reader )
+    {
+	reader.addIIOReadWarningListener( READ_WARNING_LOGGER );
+	return reader;
+    }
+
+    private static synchronized ImageReader pollIdle( Map idle, ImageReaderSpi spi )
+    { return (ImageReader) pollIdle( idle, (Object) spi ); }
+
+    private static synchronized Object pollIdle( Map idle, Object key )
+    {
+	LinkedList list = (LinkedList) idle.get( key );
+	return ( list == null || list.isEmpty() ? null : list.removeFirst() );
+    }
+
+    private static synchronized boolean offerIdle( Map idle, Object key, Object codec )
+    {
+	LinkedList list = (LinkedList) idle.get( key );
+	if ( list == null )
+	    {
+		list = new LinkedList();
+		idle.put( key, list );
+	    }
+	if ( list.size() < MAX_IDLE_PER_FORMAT )
+	    {
+		list.addFirst( codec );
+		return true;
+	    }
+	else
+	    return false;
+    }
+
+    private ImageCodecPool()
+    {}
+}
@@ -24,10 +24,42 @@
 package com.mchange.v2.ssim;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 
 public interface ImageData extends ImageSpec
 {
     public InputStream getInputStream() throws IOException;
 
     public int getContentLength();
+
+    /**
+     * @return a strong entity tag for the image data, 
+     *         including its surrounding quotes, or null if unknown
+     */
+    public String getETag();
+
+    /**
+     * @return the file whose complete contents are the image data, or null if
+     *         the data is not file-backed or its file can't be handed out. Callers
+     *         reading the File directly (e.g. via a container's sendfile support)
+     *         get no locking, so the data's source must return a File whose contents
+     *         won't change or disappear before it has been opened.
+     */
+    public File getFile();
+
+    /**
+     * @return a channel over the image data, or null if the data is not file-backed.
+     *         Like Streams returned by getInputStream(), the channel MUST be closed by
+     *         the caller.
+     */
+    public FileChannel getChannel() throws IOException;
+
+    /**
+     * Lets go of any pooled resources behind the image data. Callers should
+     * call this once they are done with the data, after which they must
+     * not use it (or Streams they've gotten from it) again. Data that
+     * holds no pooled resources can ignore this. Data that is never released 
+     * is just garbage collected, its resources lost to the pool.
+     */
+    public void release();
 }
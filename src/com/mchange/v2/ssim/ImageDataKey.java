@@ -89,6 +89,13 @@ final class ImageDataKey implements Serializable
     public boolean isComplete()
     { return (mimeType != null && width >= 0 && height >= 0); }
 
+    /**
+     * Unlike hashCode(), the same for every instance with
+     * this key's value, even across garbage collections.
+     */
+    public int valueHash()
+    { return cc.coalesceHash( this ); }
+
     public String toString()
     { return super.toString() + "[uid=" + uid + ", mimeType=" + mimeType + ", width=" + width + ", height=" + height + ']'; }
 
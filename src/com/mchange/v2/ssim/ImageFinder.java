@@ -27,8 +27,24 @@ import com.mchange.v1.util.ClosableResource;
 
 interface ImageFinder extends ClosableResource
 {
+    /**
+     * @throws ImageUnavailableException if the original image can't be fetched or decoded,
+     *                                   now or (by either method) very recently
+     */
     public ImageData find( String uid, String mimeType, int width, int height, boolean preserve_aspect_ratio  )
 	throws SsimException;
 
+    /**
+     * Finds an image only if it can be served as-is, without scaling and
+     * without waiting for a scale or store in progress, and without contacting
+     * a remote origin. (A cached image from a remote origin is only known to be
+     * fresh while our record of that origin is. Local origins, files, resources
+     * of the web application, or jar entries, are simply asked their timestamps.)
+     *
+     * @return null if the image is not ready to be served
+     */
+    public ImageData findCached( String uid, String mimeType, int width, int height, boolean preserve_aspect_ratio  )
+	throws SsimException;
+
     public void close() throws SsimException;
 }
@@ -0,0 +1,62 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+/**
+ * Signals that an image can't be served at all, because its origin
+ * doesn't have it, or failed to give it to us, or gave us something
+ * we can't decode, or (for now) because we already have as many connections
+ * open to its origin as we allow. Carries the HTTP status that best
+ * describes the problem.
+ */
+public class ImageUnavailableException extends SsimException
+{
+    // HTTP statuses, so we needn't depend upon the servlet API here
+    public final static int NOT_FOUND              = 404;
+    public final static int UNSUPPORTED_MEDIA_TYPE = 415;
+    public final static int BAD_GATEWAY            = 502;
+    public final static int SERVICE_UNAVAILABLE    = 503; // our own limits, not the origin's failure
+    public final static int GATEWAY_TIMEOUT        = 504;
+
+    int status;
+
+    public ImageUnavailableException( String msg, int status )
+    { 
+	super( msg ); 
+	this.status = status;
+    }
+
+    public ImageUnavailableException( String msg, Exception rootCause, int status )
+    { 
+	super( msg ); 
+	this.initCause( rootCause );
+	this.status = status;
+    }
+
+    /**
+     * @return the HTTP status with which a request for the image should fail
+     */
+    public int getStatus()
+    { return status; }
+}
@@ -0,0 +1,130 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.util.*;
+
+/**
+ * Evicts the least-frequently-used image first, and of those used equally
+ * often, the least-recently-used, whatever its size. Counts are kept only
+ * for images we hold, so a newcomer starts from one, however popular
+ * it was before it was evicted.
+ */
+final class LfuEvictionPolicy implements EvictionPolicy
+{
+    // MT: thread-safe immutable singleton
+    final static Comparator EVICTION_ORDER = new Comparator()
+	{
+	    public int compare( Object a, Object b )
+	    {
+		Entry aa = (Entry) a;
+		Entry bb = (Entry) b;
+		if ( aa.frequency != bb.frequency )
+		    return ( aa.frequency < bb.frequency ? -1 : 1 );
+		else
+		    return ( aa.last_use < bb.last_use ? -1 : ( aa.last_use == bb.last_use ? 0 : 1 ) );
+	    }
+	};
+
+    HashMap entries = new HashMap(); // ImageDataKeys -> Entries
+    TreeSet order   = new TreeSet( EVICTION_ORDER );
+    long    clock   = 0;
+    long    total   = 0;
+
+    public void stored( ImageDataKey key, long size )
+    {
+	Entry entry = (Entry) entries.get( key );
+	if ( entry == null )
+	    {
+		entry = new Entry( key );
+		entries.put( key, entry );
+	    }
+	else
+	    {
+		order.remove( entry );
+		total -= entry.size;
+	    }
+	entry.size = size;
+	total += size;
+	use( entry );
+    }
+
+    public void accessed( ImageDataKey key, long size )
+    {
+	Entry entry = (Entry) entries.get( key );
+	if ( entry == null )
+	    stored( key, size );
+	else
+	    {
+		order.remove( entry );
+		use( entry );
+	    }
+    }
+
+    private void use( Entry entry )
+    {
+	++entry.frequency;
+	entry.last_use = ++clock;
+	order.add( entry );
+    }
+
+    public boolean contains( ImageDataKey key )
+    { return entries.containsKey( key ); }
+
+    public ImageDataKey evict()
+    {
+	if ( order.isEmpty() )
+	    return null;
+	Entry entry = (Entry) order.first();
+	order.remove( entry );
+	entries.remove( entry.key );
+	total -= entry.size;
+	return entry.key;
+    }
+
+    public long totalSize()
+    { return total; }
+
+    public List keysInEvictionOrder()
+    {
+	List out = new ArrayList( order.size() );
+	for ( Iterator ii = order.iterator(); ii.hasNext(); )
+	    out.add( ((Entry) ii.next()).key );
+	return out;
+    }
+
+    public String getName()
+    { return "lfu"; }
+
+    final static class Entry
+    {
+	ImageDataKey key;
+	long         size;
+	long         frequency = 0;
+	long         last_use;
+
+	Entry( ImageDataKey key )
+	{ this.key = key; }
+    }
+}
@@ -0,0 +1,765 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Appends everything (scaled images, originals, and the metadata that
+ * describes them) to a few large segment files, rather than keeping a file
+ * per image, and reads it back from memory-mapped views of those files.
+ * A store full of small thumbnails costs a handful of files and no syscalls
+ * per hit, rather than hundreds of thousands of inodes and an open per hit.
+ *
+ * Which record in which segment holds each key lives only in memory, and is
+ * rebuilt at startup by scanning the segments in the order they were written.
+ * Every record carries its own key and a checksum, and the scan of a segment
+ * stops at the first record that was never finished.
+ *
+ * We evict a whole segment at a time, oldest first, once the store exceeds
+ * its budget, copying forward into the newest segment whatever in it has been
+ * read since it filled up. Segments left mostly full of replaced records are
+ * compacted the same way. Both happen in a background thread.
+ *
+ * Retrieved ImageData are views of the mapped segments, and stay readable
+ * even after their segment is evicted and deleted, until they are collected.
+ */
+final class LogStructuredPersistentStore implements SsimPersistentStore
+{
+    final static String STORAGE_DIR_BASENAME = "SsimLogDir_v";
+    final static int    LOG_FORMAT_VERSION   = 1;
+
+    final static String SEGMENT_FILE_PREFIX = "segment_";
+    final static String SEGMENT_FILE_SUFFIX = ".log";
+
+    final static int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    final static int MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    // the budget is divided into at least this many segments, so that evicting one frees only a fraction of it
+    final static int MIN_SEGMENTS = 8;
+
+    // no one record may take up more than this fraction of a segment
+    final static int MAX_RECORD_FRACTION = 4;
+
+    // sealed segments less live than this are compacted, even if we are within budget
+    final static double MIN_LIVE_RATIO = 0.5;
+
+    // evicting a segment carries forward at most this fraction of it
+    final static int MAX_CARRY_FRACTION = 2;
+
+    // records are
+    //   magic (int), header length (int), header, data length (int), CRC32 of header and data (long), data
+    // and we write the magic last, so that a record interrupted by a crash is never mistaken for a finished one
+    final static int COMPLETE = 0x53534c31; // "SSL1"
+    final static int ABANDONED = 0x53534c30; // "SSL0", a record we failed to write, skipped when we scan
+    final static int RECORD_OVERHEAD = 4 + 4 + 4 + 8;
+
+    // kinds of record, a MetaKey's kind or else an image
+    final static byte IMAGE = 0;
+
+    // MT: unchanging after constructor
+    final File storageDir;
+    final long max_size_in_bytes; // <= 0 means unlimited
+    final int  segment_size;
+
+    // MT: thread-safe, ImageDataKeys and MetaKeys -> Locs, modified only while holding this' lock
+    final ConcurrentHashMap index = new ConcurrentHashMap();
+
+    // MT: protected by this' lock
+    LinkedList segments = new LinkedList(); // oldest first, the active segment last
+    Segment    active;
+    int        next_segment_number = 0;
+    long       size_in_bytes = 0;
+
+    // MT: unchanging after constructor
+    final CompactThread compactThread;
+
+    /**
+     * @param max_size the maximum size of the store, in megabytes, unlimited if not positive
+     * @param compact_delay the maximum time between looks for segments to evict or compact, in seconds.
+     *                      if not positive, we look only when a segment fills up.
+     */
+    LogStructuredPersistentStore( File parentDir, long max_size, int compact_delay ) throws IOException
+    {
+	if (! parentDir.isDirectory() || ! parentDir.canWrite())
+	    throw new IllegalArgumentException( parentDir.getAbsolutePath() + " must be a directory, and must be writable!");
+	this.storageDir        = findCreateStorageDir( parentDir );
+	this.max_size_in_bytes = max_size * (1024 * 1024);
+
+	if ( max_size_in_bytes > 0 )
+	    this.segment_size = (int) Math.max( MIN_SEGMENT_SIZE, Math.min( MAX_SEGMENT_SIZE, max_size_in_bytes / MIN_SEGMENTS ) );
+	else
+	    this.segment_size = MAX_SEGMENT_SIZE;
+
+	synchronized ( this )
+	    {
+		File[] files = storageDir.listFiles();
+		SortedMap byNumber = new TreeMap();
+		for (int i = 0; i < files.length; ++i)
+		    {
+			int number = segmentNumber( files[i] );
+			if ( number >= 0 )
+			    byNumber.put( Integer.valueOf( number ), files[i] );
+		    }
+		for ( Iterator ii = byNumber.entrySet().iterator(); ii.hasNext(); )
+		    {
+			Map.Entry entry = (Map.Entry) ii.next();
+			int number = ((Integer) entry.getKey()).intValue();
+			Segment segment = openSegment( number, (File) entry.getValue() );
+			scan( segment );
+			segment.sealed = true;
+			segment.sealed_at = System.currentTimeMillis(); // we know nothing of what was read before
+			segments.add( segment );
+			next_segment_number = number + 1;
+		    }
+		roll();
+	    }
+
+	this.compactThread = new CompactThread( compact_delay * 1000L );
+	compactThread.start();
+    }
+
+    public ImageSpec originalImageSpec( ImageDataKey maybeIncompleteKey ) throws SsimException
+    { return (ImageSpec) readObject( new MetaKey( MetaKey.SPEC, maybeIncompleteKey.getUid() ) ); }
+
+    public void store( ImageDataKey completeKey, ImageBuffer imageBytes, ImageSpec originalImageSpec ) throws SsimException
+    {
+	// like the directory store, we keep the first spec we're given
+	MetaKey specKey = new MetaKey( MetaKey.SPEC, completeKey.getUid() );
+	if (! index.containsKey( specKey ) )
+	    writeObject( specKey, surelySerializable( originalImageSpec ) );
+
+	try
+	    { append( completeKey, imageBytes.getETag(), System.currentTimeMillis(), imageBytes.size(), imageBytes ); }
+	catch ( IOException e )
+	    {
+		e.printStackTrace();
+		throw new SsimException( e );
+	    }
+    }
+
+    public ImageData retrieve( ImageDataKey completeKey ) throws SsimException
+    {
+	Loc loc = touch( completeKey );
+	return ( loc == null ? null : new ByteBufferImageData( completeKey.getMimeType(), loc.data(), loc.etag, loc.timestamp, completeKey.getWidth(), completeKey.getHeight() ) );
+    }
+
+    public void noteServed( ImageDataKey completeKey, int length )
+    { touch( completeKey ); }
+
+    public ImageData retrieveOriginal( String uid ) throws SsimException
+    {
+	Loc loc = touch( new MetaKey( MetaKey.ORIGINAL, uid ) );
+	return ( loc == null ? null : new ByteBufferImageData( null, loc.data(), loc.etag, loc.timestamp, -1, -1 ) );
+    }
+
+    public void storeOriginal( String uid, ImageBuffer imageBytes ) throws SsimException
+    {
+	try
+	    { append( new MetaKey( MetaKey.ORIGINAL, uid ), imageBytes.getETag(), System.currentTimeMillis(), imageBytes.size(), imageBytes ); }
+	catch ( IOException e )
+	    {
+		e.printStackTrace();
+		throw new SsimException( e );
+	    }
+    }
+
+    public OriginRecord originRecord( String uid ) throws SsimException
+    { return (OriginRecord) readObject( new MetaKey( MetaKey.RECORD, uid ) ); }
+
+    public void storeOriginRecord( String uid, OriginRecord record ) throws SsimException
+    { writeObject( new MetaKey( MetaKey.RECORD, uid ), record ); }
+
+    // mappings, and ImageData that view them, remain valid after this
+    public void close() throws SsimException
+    {
+	compactThread.gentleStop();
+	synchronized ( this )
+	    { active.map.force(); }
+    }
+
+    private Loc touch( Object key )
+    {
+	Loc out = (Loc) index.get( key );
+	if ( out != null )
+	    out.last_access = System.currentTimeMillis();
+	return out;
+    }
+
+    /**
+     * We reserve space for the record in the active segment, write it there
+     * without holding our lock, and then publish it in the index.
+     *
+     * @param data an ImageBuffer or a ByteBuffer, holding exactly length bytes
+     * @return the new record's Loc, or null if the record is too big to keep
+     */
+    private Loc append( Object key, String etag, long timestamp, int length, Object data ) throws IOException
+    {
+	byte[] header = header( key, etag, timestamp );
+	int record_size = RECORD_OVERHEAD + header.length + length;
+	if ( record_size > segment_size / MAX_RECORD_FRACTION ) // we just don't keep it
+	    return null;
+
+	Segment segment;
+	int     record_offset;
+	synchronized ( this )
+	    {
+		if ( active.write_pos + record_size > segment_size )
+		    roll();
+		segment = active;
+		record_offset = active.write_pos;
+		active.write_pos += record_size;
+		++active.pending_writes;
+		size_in_bytes += record_size;
+	    }
+
+	Loc loc = null;
+	try
+	    {
+		ByteBuffer out = segment.map.duplicate();
+		out.limit( record_offset + record_size );
+		out.position( record_offset + 4 );
+		out.putInt( header.length );
+		out.put( header );
+		out.putInt( length );
+		int crc_offset = out.position();
+		out.position( crc_offset + 8 );
+
+		CRC32 crc = new CRC32();
+		crc.update( header );
+		if ( data instanceof ImageBuffer )
+		    ((ImageBuffer) data).writeTo( new ChecksummingOutputStream( out, crc ) );
+		else
+		    {
+			ByteBuffer in = ((ByteBuffer) data).duplicate();
+			crc.update( in.duplicate() );
+			out.put( in );
+		    }
+		if ( out.hasRemaining() )
+		    throw new IOException( "Expected " + length + " bytes of data for " + key + ", got " + (length - out.remaining()) + '.' );
+		out.putLong( crc_offset, crc.getValue() );
+		out.putInt( record_offset, COMPLETE );
+
+		loc = new Loc( segment, record_offset, record_size, crc_offset + 8, length, etag, timestamp );
+		return loc;
+	    }
+	catch ( RuntimeException e ) // BufferOverflowException, if the data was longer than promised
+	    { throw new IOException( "Failed to append a record for " + key + '.', e ); }
+	finally
+	    {
+		synchronized ( this )
+		    {
+			if ( loc != null )
+			    {
+				if ( key instanceof Carried )
+				    {
+					// a copy replaces its original only if that hasn't itself been replaced
+					Carried carried = (Carried) key;
+					if ( index.get( carried.key ) == carried.from )
+					    publish( carried.key, loc );
+				    }
+				else
+				    publish( key, loc );
+			    }
+			else
+			    segment.map.putInt( record_offset, ABANDONED );
+			--segment.pending_writes;
+		    }
+	    }
+    }
+
+    // MT: call only while holding this' lock
+    private void publish( Object key, Loc loc )
+    {
+	Loc old = (Loc) index.put( key, loc );
+	loc.segment.live_bytes += loc.record_size;
+	if ( old != null )
+	    old.segment.live_bytes -= old.record_size;
+    }
+
+    // MT: call only while holding this' lock
+    private void roll() throws IOException
+    {
+	if ( active != null )
+	    {
+		active.sealed = true;
+		active.sealed_at = System.currentTimeMillis();
+	    }
+	int number = next_segment_number++;
+	active = openSegment( number, new File( storageDir, SEGMENT_FILE_PREFIX + number + SEGMENT_FILE_SUFFIX ) );
+	segments.add( active );
+	if ( compactThread != null )
+	    compactThread.wake();
+    }
+
+    // the active segment is mapped at its full size, which leaves a sparse file on most filesystems
+    private Segment openSegment( int number, File file ) throws IOException
+    {
+	RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+	try
+	    {
+		FileChannel fc = raf.getChannel();
+		long size = Math.max( fc.size(), segment_size );
+		if ( size > Integer.MAX_VALUE )
+		    throw new IOException( "Segment " + file + " is too large to map: " + size );
+		return new Segment( number, file, fc.map( FileChannel.MapMode.READ_WRITE, 0, size ) );
+	    }
+	finally
+	    { raf.close(); } // the mapping outlives the channel
+    }
+
+    // MT: call only while holding this' lock, before the index is in use
+    private void scan( Segment segment ) throws IOException
+    {
+	ByteBuffer in = segment.map.duplicate();
+	int pos = 0;
+	while ( pos + RECORD_OVERHEAD <= in.limit() )
+	    {
+		in.position( pos );
+		int magic = in.getInt();
+		if ( magic != COMPLETE && magic != ABANDONED )
+		    break;
+
+		int header_length = in.getInt();
+		if ( header_length <= 0 || in.limit() - in.position() < header_length + 12 )
+		    break;
+		byte[] header = new byte[ header_length ];
+		in.get( header );
+		int length = in.getInt();
+		long checksum = in.getLong();
+		int data_offset = in.position();
+		if ( length < 0 || in.limit() - data_offset < length )
+		    break;
+		int record_size = RECORD_OVERHEAD + header_length + length;
+		pos += record_size;
+
+		if ( magic == ABANDONED )
+		    continue;
+
+		ByteBuffer data = in.duplicate();
+		data.limit( data_offset + length );
+		CRC32 crc = new CRC32();
+		crc.update( header );
+		crc.update( data );
+		if ( crc.getValue() != checksum )
+		    {
+			System.err.println( this + ": Skipping a corrupt record at offset " + (pos - record_size) + " of " + segment.file + '.' );
+			continue;
+		    }
+
+		DataInputStream dis = new DataInputStream( new ByteArrayInputStream( header ) );
+		Object key = readKey( dis );
+		String etag = ( dis.readBoolean() ? dis.readUTF() : null );
+		long timestamp = dis.readLong();
+
+		// a record carried forward by compaction may follow a newer one written while it was being copied
+		Loc old = (Loc) index.get( key );
+		if ( old == null || old.timestamp <= timestamp )
+		    publish( key, new Loc( segment, pos - record_size, record_size, data_offset, length, etag, timestamp ) );
+	    }
+	segment.write_pos = pos;
+	size_in_bytes += pos;
+    }
+
+    private void compact() throws IOException
+    {
+	// first evict, oldest first, until we're within budget
+	while ( true )
+	    {
+		Segment victim = null;
+		synchronized ( this )
+		    {
+			if ( max_size_in_bytes <= 0 || size_in_bytes <= max_size_in_bytes )
+			    break;
+			Segment oldest = (Segment) segments.getFirst();
+			if ( oldest != active && oldest.pending_writes == 0 )
+			    victim = oldest;
+		    }
+		if ( victim == null )
+		    break;
+		rewrite( victim, true );
+	    }
+
+	// then reclaim space taken up by records since replaced
+	List sealed;
+	synchronized ( this )
+	    { sealed = new ArrayList( segments ); }
+	for ( Iterator ii = sealed.iterator(); ii.hasNext(); )
+	    {
+		Segment segment = (Segment) ii.next();
+		boolean sparse;
+		synchronized ( this )
+		    { sparse = ( segment.sealed && !segment.deleted && segment.pending_writes == 0 && segment.live_bytes < segment.write_pos * MIN_LIVE_RATIO ); }
+		if ( sparse )
+		    rewrite( segment, false );
+	    }
+    }
+
+    /**
+     * Copies forward whatever in segment we mean to keep, then deletes it.
+     * Segment must be sealed with no pending writes, so nothing new can
+     * come to refer to it.
+     *
+     * @param evicting if true, we keep only the most recently read
+     *                 records read since the segment was sealed, otherwise
+     *                 we keep everything still live
+     */
+    private void rewrite( Segment segment, boolean evicting ) throws IOException
+    {
+	List live = new ArrayList();
+	for ( Iterator ii = index.entrySet().iterator(); ii.hasNext(); )
+	    {
+		Map.Entry entry = (Map.Entry) ii.next();
+		Loc loc = (Loc) entry.getValue();
+		if ( loc.segment == segment )
+		    live.add( entry );
+	    }
+
+	if ( evicting )
+	    {
+		Collections.sort( live, new Comparator()
+		    {
+			public int compare( Object a, Object b )
+			{
+			    long a_access = ((Loc) ((Map.Entry) a).getValue()).last_access;
+			    long b_access = ((Loc) ((Map.Entry) b).getValue()).last_access;
+			    return ( a_access > b_access ? -1 : ( a_access < b_access ? 1 : 0 ) );
+			}
+		    } );
+	    }
+
+	long carry_budget = ( evicting ? segment.write_pos / MAX_CARRY_FRACTION : Long.MAX_VALUE );
+	for ( Iterator ii = live.iterator(); ii.hasNext(); )
+	    {
+		Map.Entry entry = (Map.Entry) ii.next();
+		Object key = entry.getKey();
+		Loc loc = (Loc) entry.getValue();
+
+		if ( evicting && ( loc.last_access < segment.sealed_at || loc.record_size > carry_budget ) )
+		    continue;
+
+		// copies preserve timestamps
+		Loc moved = append( new Carried( key, loc ), loc.etag, loc.timestamp, loc.length, loc.data() );
+		if ( moved != null )
+		    {
+			moved.last_access = loc.last_access;
+			carry_budget -= loc.record_size;
+		    }
+	    }
+
+	synchronized ( this )
+	    {
+		for ( Iterator ii = live.iterator(); ii.hasNext(); )
+		    {
+			Map.Entry entry = (Map.Entry) ii.next();
+			Loc loc = (Loc) entry.getValue();
+			if ( index.remove( entry.getKey(), loc ) )
+			    segment.live_bytes -= loc.record_size;
+		    }
+		segment.deleted = true;
+		segments.remove( segment );
+		size_in_bytes -= segment.write_pos;
+	    }
+
+	// on unix, readers still viewing the mapping keep reading it happily
+	if (! segment.file.delete() )
+	    segment.file.deleteOnExit();
+    }
+
+    private Object readObject( MetaKey key ) throws SsimException
+    {
+	Loc loc = touch( key );
+	if ( loc == null )
+	    return null;
+
+	ObjectInputStream ois = null;
+	try
+	    {
+		ByteBuffer data = loc.data();
+		byte[] bytes = new byte[ data.remaining() ];
+		data.get( bytes );
+		ois = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
+		return ois.readObject();
+	    }
+	catch ( Exception e )
+	    {
+		e.printStackTrace();
+		throw new SsimException( e );
+	    }
+	finally
+	    { 
+		try { if ( ois != null ) ois.close(); }
+		catch ( IOException e )
+		    { e.printStackTrace(); }
+	    }
+    }
+
+    private void writeObject( MetaKey key, Object o ) throws SsimException
+    {
+	try
+	    {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream( baos );
+		oos.writeObject( o );
+		oos.close();
+		byte[] bytes = baos.toByteArray();
+		append( key, null, System.currentTimeMillis(), bytes.length, ByteBuffer.wrap( bytes ) );
+	    }
+	catch ( IOException e )
+	    {
+		e.printStackTrace();
+		throw new SsimException( e );
+	    }
+    }
+
+    private static byte[] header( Object key, String etag, long timestamp ) throws IOException
+    {
+	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	DataOutputStream dos = new DataOutputStream( baos );
+	if ( key instanceof Carried )
+	    key = ((Carried) key).key;
+	if ( key instanceof ImageDataKey )
+	    {
+		ImageDataKey idk = (ImageDataKey) key;
+		dos.writeByte( IMAGE );
+		dos.writeUTF( idk.getUid() );
+		dos.writeUTF( idk.getMimeType() );
+		dos.writeInt( idk.getWidth() );
+		dos.writeInt( idk.getHeight() );
+	    }
+	else
+	    {
+		MetaKey mk = (MetaKey) key;
+		dos.writeByte( mk.getKind() );
+		dos.writeUTF( mk.getUid() );
+	    }
+	dos.writeBoolean( etag != null );
+	if ( etag != null )
+	    dos.writeUTF( etag );
+	dos.writeLong( timestamp );
+	dos.close();
+	return baos.toByteArray();
+    }
+
+    private static Object readKey( DataInputStream dis ) throws IOException
+    {
+	byte kind = dis.readByte();
+	String uid = dis.readUTF();
+	if ( kind == IMAGE )
+	    return ImageDataKey.findKey( uid, dis.readUTF(), dis.readInt(), dis.readInt() );
+	else
+	    return new MetaKey( kind, uid );
+    }
+
+    private static int segmentNumber( File file )
+    {
+	String name = file.getName();
+	if ( name.startsWith( SEGMENT_FILE_PREFIX ) && name.endsWith( SEGMENT_FILE_SUFFIX ) )
+	    {
+		try
+		    { return Integer.parseInt( name.substring( SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length() ) ); }
+		catch ( NumberFormatException e )
+		    { return -1; }
+	    }
+	else
+	    return -1;
+    }
+
+    private static File findCreateStorageDir( File parentDir )
+    {
+	File sdir = new File( parentDir, STORAGE_DIR_BASENAME + LOG_FORMAT_VERSION );
+	if (! sdir.exists() )
+	    sdir.mkdir();
+	return sdir;
+    }
+
+    private static ImageSpec surelySerializable( ImageSpec spec )
+    {
+	if (spec instanceof Serializable)
+	    return spec;
+	else
+	    return new ConcreteImageSpec( spec.getMimeType(), spec.getTimestamp(), spec.getWidth(), spec.getHeight() );
+    }
+
+    final static class Segment
+    {
+	int              number;
+	File             file;
+	MappedByteBuffer map;
+
+	// MT: protected by the store's lock
+	int     write_pos      = 0;
+	long    live_bytes     = 0;
+	int     pending_writes = 0;
+	boolean sealed         = false;
+	long    sealed_at      = 0;
+	boolean deleted        = false;
+
+	Segment( int number, File file, MappedByteBuffer map )
+	{
+	    this.number = number;
+	    this.file   = file;
+	    this.map    = map;
+	}
+    }
+
+    final static class Loc
+    {
+	Segment segment;
+	int     record_offset;
+	int     record_size;
+	int     data_offset;
+	int     length;
+	String  etag;
+	long    timestamp;
+
+	// MT: written without synchronization, just a hint for eviction
+	volatile long last_access = 0;
+
+	Loc( Segment segment, int record_offset, int record_size, int data_offset, int length, String etag, long timestamp )
+	{
+	    this.segment       = segment;
+	    this.record_offset = record_offset;
+	    this.record_size   = record_size;
+	    this.data_offset   = data_offset;
+	    this.length        = length;
+	    this.etag          = etag;
+	    this.timestamp     = timestamp;
+	}
+
+	ByteBuffer data()
+	{
+	    ByteBuffer out = segment.map.duplicate();
+	    out.limit( data_offset + length );
+	    out.position( data_offset );
+	    return out;
+	}
+    }
+
+    // a key, on its way from one segment to another
+    final static class Carried
+    {
+	Object key;
+	Loc    from;
+
+	Carried( Object key, Loc from )
+	{
+	    this.key  = key;
+	    this.from = from;
+	}
+
+	public String toString()
+	{ return String.valueOf( key ); }
+    }
+
+    final static class ChecksummingOutputStream extends OutputStream
+    {
+	ByteBuffer out;
+	CRC32      crc;
+
+	ChecksummingOutputStream( ByteBuffer out, CRC32 crc )
+	{
+	    this.out = out;
+	    this.crc = crc;
+	}
+
+	public void write( int b )
+	{
+	    out.put( (byte) b );
+	    crc.update( b );
+	}
+
+	public void write( byte[] b, int off, int len )
+	{
+	    out.put( b, off, len );
+	    crc.update( b, off, len );
+	}
+    }
+
+    class CompactThread extends Thread
+    {
+	long    delay_in_msecs;
+	boolean should_stop = false;
+	boolean awakened    = false;
+
+	CompactThread( long delay_in_msecs )
+	{
+	    this.delay_in_msecs = delay_in_msecs;
+	    this.setName("LogStructuredPersistentStore.CompactThread@" + Integer.toString( System.identityHashCode( this ), 16 ));
+	    this.setDaemon( true );
+	}
+
+	public synchronized void wake()
+	{
+	    awakened = true;
+	    this.notifyAll();
+	}
+
+	public synchronized void gentleStop()
+	{ 
+	    this.should_stop = true; 
+	    this.notifyAll();
+	}
+
+	// returns true if we should stop
+	private synchronized boolean await() throws InterruptedException
+	{
+	    if (! should_stop && ! awakened )
+		{
+		    if ( delay_in_msecs > 0 )
+			this.wait( delay_in_msecs );
+		    else
+			this.wait();
+		}
+	    awakened = false;
+	    return should_stop;
+	}
+
+	public void run()
+	{
+	    while (true)
+		{
+		    try
+			{
+			    if ( await() )
+				break;
+			    compact();
+			}
+		    catch ( InterruptedException e )
+			{ break; }
+		    catch ( IOException e )
+			{
+			    // bad news, but what can we do?
+			    // better luck next time, maybe.
+			    e.printStackTrace();
+			}
+		}
+	}
+    }
+}
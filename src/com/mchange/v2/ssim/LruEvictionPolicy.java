@@ -0,0 +1,70 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.util.*;
+
+/**
+ * Evicts the least-recently-used image first, whatever its size.
+ */
+final class LruEvictionPolicy implements EvictionPolicy
+{
+    LinkedHashMap sizes = new LinkedHashMap( 16, 0.75f, true ); // ImageDataKeys -> Longs, in access order
+    long          total = 0;
+
+    public void stored( ImageDataKey key, long size )
+    {
+	Long old = (Long) sizes.put( key, Long.valueOf( size ) );
+	total += size - ( old == null ? 0 : old.longValue() );
+    }
+
+    public void accessed( ImageDataKey key, long size )
+    {
+	if ( sizes.get( key ) == null ) // get(...) moves it to the most-recently-used end
+	    stored( key, size );
+    }
+
+    public boolean contains( ImageDataKey key )
+    { return sizes.containsKey( key ); }
+
+    public ImageDataKey evict()
+    {
+	Iterator ii = sizes.entrySet().iterator();
+	if (! ii.hasNext() )
+	    return null;
+	Map.Entry entry = (Map.Entry) ii.next();
+	total -= ((Long) entry.getValue()).longValue();
+	ii.remove();
+	return (ImageDataKey) entry.getKey();
+    }
+
+    public long totalSize()
+    { return total; }
+
+    public List keysInEvictionOrder()
+    { return new ArrayList( sizes.keySet() ); } // iterating doesn't reorder
+
+    public String getName()
+    { return "lru"; }
+}
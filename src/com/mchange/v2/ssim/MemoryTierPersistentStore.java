@@ -0,0 +1,331 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Keeps the most popular scaled images (and the small bits of metadata we
+ * consult on every request) in memory, in front of another store, to which
+ * we write through. Hits on the memory tier never touch the filesystem, and
+ * never contend for the underlying store's locks.
+ *
+ * Images are held within a byte budget, on the Java heap or in direct
+ * (off-heap) buffers, and evicted least-recently-used first. But an image is
+ * admitted only if it has recently been requested more often than the images
+ * it would displace (the "TinyLFU" policy), so a burst of one-off requests
+ * can't flush out images that are steadily popular.
+ */
+final class MemoryTierPersistentStore implements SsimPersistentStore
+{
+    // no one image may take up more than this fraction of the budget
+    final static int MAX_ENTRY_FRACTION = 8;
+
+    // for sizing the frequency sketch
+    final static int EXPECTED_ENTRY_SIZE = 16 * 1024;
+
+    final static int MAX_METADATA_ENTRIES = 10000;
+
+    // MT: unchanging after constructor
+    final SsimPersistentStore inner;
+    final long                max_bytes;
+    final long                max_entry_bytes;
+    final boolean             off_heap;
+
+    // MT: protected by this' lock
+    LinkedHashMap   entries = new LinkedHashMap( 16, 0.75f, true ); //ImageDataKeys -> Entries, in access order
+    long            bytes   = 0;
+    FrequencySketch sketch;
+
+    // MT: protected by this' lock
+    //     uids -> ImageSpecs and OriginRecords, which we cache only once the underlying store has them
+    Map specs   = new BoundedLruMap( MAX_METADATA_ENTRIES );
+    Map records = new BoundedLruMap( MAX_METADATA_ENTRIES );
+
+    /**
+     * @param max_bytes the most image data we hold in memory
+     * @param off_heap  if true, images are held in direct buffers, outside the Java heap
+     */
+    MemoryTierPersistentStore( SsimPersistentStore inner, long max_bytes, boolean off_heap )
+    {
+	this.inner           = inner;
+	this.max_bytes       = max_bytes;
+	this.max_entry_bytes = max_bytes / MAX_ENTRY_FRACTION;
+	this.off_heap        = off_heap;
+	this.sketch          = new FrequencySketch( (int) Math.min( Integer.MAX_VALUE, max_bytes / EXPECTED_ENTRY_SIZE ) );
+    }
+
+    public ImageSpec originalImageSpec( ImageDataKey maybeIncompleteKey ) throws SsimException
+    {
+	String uid = maybeIncompleteKey.getUid();
+	synchronized ( this )
+	    {
+		ImageSpec out = (ImageSpec) specs.get( uid );
+		if ( out != null )
+		    return out;
+	    }
+
+	ImageSpec out = inner.originalImageSpec( maybeIncompleteKey );
+	if ( out != null )
+	    {
+		synchronized ( this )
+		    { specs.put( uid, out ); }
+	    }
+	return out;
+    }
+
+    public void store( ImageDataKey completeKey, ImageBuffer imageBytes, ImageSpec completeOriginalImageSpec ) throws SsimException
+    {
+	inner.store( completeKey, imageBytes, completeOriginalImageSpec );
+
+	// an image that's already in memory is popular, we just replace it
+	boolean replace;
+	synchronized ( this )
+	    { replace = entries.containsKey( completeKey ) || shouldAdmit( completeKey, imageBytes.size() ); }
+
+	if ( replace )
+	    {
+		try
+		    {
+			byte[] data = new byte[ imageBytes.size() ];
+			readFully( imageBytes.getInputStream(), data );
+			insert( completeKey, new Entry( toBuffer( data ), imageBytes.getETag(), System.currentTimeMillis() ) );
+		    }
+		catch ( IOException e ) // the image is safe underneath us, we just won't hold it
+		    {
+			e.printStackTrace();
+			invalidate( completeKey );
+		    }
+	    }
+    }
+
+    public ImageData retrieve( ImageDataKey completeKey ) throws SsimException
+    {
+	Entry entry;
+	boolean admit;
+	synchronized ( this )
+	    {
+		sketch.increment( completeKey.valueHash() );
+		entry = (Entry) entries.get( completeKey );
+	    }
+	if ( entry != null )
+	    {
+		// so that what's popular here isn't culled as cold underneath us
+		inner.noteServed( completeKey, entry.size() );
+		return memoryImageData( completeKey, entry );
+	    }
+
+	ImageData out = inner.retrieve( completeKey );
+	if ( out == null )
+	    return null;
+
+	synchronized ( this )
+	    { admit = shouldAdmit( completeKey, out.getContentLength() ); }
+	if (! admit )
+	    return out;
+
+	// we read the image into memory, and serve it from there
+	InputStream is = null;
+	try
+	    {
+		byte[] data = new byte[ out.getContentLength() ];
+		is = out.getInputStream();
+		readFully( is, data );
+		entry = new Entry( toBuffer( data ), out.getETag(), out.getTimestamp() );
+	    }
+	catch ( IOException e ) // replaced or culled underneath us, maybe. we'll try again next time
+	    { 
+		e.printStackTrace();
+		return out; 
+	    }
+	finally
+	    { closeQuietly( is ); }
+	insert( completeKey, entry );
+	out.release();
+	return memoryImageData( completeKey, entry );
+    }
+
+    public void noteServed( ImageDataKey completeKey, int length )
+    { inner.noteServed( completeKey, length ); }
+
+    public ImageData retrieveOriginal( String uid ) throws SsimException
+    { return inner.retrieveOriginal( uid ); }
+
+    public void storeOriginal( String uid, ImageBuffer imageBytes ) throws SsimException
+    { inner.storeOriginal( uid, imageBytes ); }
+
+    public OriginRecord originRecord( String uid ) throws SsimException
+    {
+	synchronized ( this )
+	    {
+		OriginRecord out = (OriginRecord) records.get( uid );
+		if ( out != null )
+		    return out;
+	    }
+
+	OriginRecord out = inner.originRecord( uid );
+	if ( out != null )
+	    {
+		synchronized ( this )
+		    { records.put( uid, out ); }
+	    }
+	return out;
+    }
+
+    public void storeOriginRecord( String uid, OriginRecord record ) throws SsimException
+    {
+	try
+	    { inner.storeOriginRecord( uid, record ); }
+	catch ( SsimException e )
+	    {
+		// we don't know what's underneath anymore
+		synchronized ( this )
+		    { records.remove( uid ); }
+		throw e;
+	    }
+	synchronized ( this )
+	    { records.put( uid, record ); }
+    }
+
+    public void close() throws SsimException
+    {
+	synchronized ( this )
+	    {
+		entries.clear();
+		bytes = 0;
+	    }
+	inner.close();
+    }
+
+    // MT: call only while holding this' lock
+    // we make room by evicting the least recently used images, but
+    // only if the newcomer is more popular than all of them
+    private boolean shouldAdmit( ImageDataKey key, long size )
+    {
+	if ( size < 0 || size > max_entry_bytes )
+	    return false;
+
+	long needed = bytes + size - max_bytes;
+	if ( needed <= 0 )
+	    return true;
+
+	int candidate_frequency = sketch.frequency( key.valueHash() );
+	for ( Iterator ii = entries.entrySet().iterator(); needed > 0 && ii.hasNext(); )
+	    {
+		Map.Entry mapEntry = (Map.Entry) ii.next();
+		ImageDataKey victim = (ImageDataKey) mapEntry.getKey();
+		if ( sketch.frequency( victim.valueHash() ) >= candidate_frequency )
+		    return false;
+		needed -= ((Entry) mapEntry.getValue()).size();
+	    }
+	return true;
+    }
+
+    private synchronized void insert( ImageDataKey key, Entry entry )
+    {
+	Entry old = (Entry) entries.put( key, entry );
+	if ( old != null )
+	    bytes -= old.size();
+	bytes += entry.size();
+
+	for ( Iterator ii = entries.values().iterator(); bytes > max_bytes && ii.hasNext(); )
+	    {
+		Entry victim = (Entry) ii.next();
+		if ( victim != entry )
+		    {
+			bytes -= victim.size();
+			ii.remove();
+		    }
+	    }
+    }
+
+    private synchronized void invalidate( ImageDataKey key )
+    {
+	Entry old = (Entry) entries.remove( key );
+	if ( old != null )
+	    bytes -= old.size();
+    }
+
+    private static ImageData memoryImageData( ImageDataKey completeKey, Entry entry )
+    { return new ByteBufferImageData( completeKey.getMimeType(), entry.data, entry.etag, entry.timestamp, completeKey.getWidth(), completeKey.getHeight() ); }
+
+    private ByteBuffer toBuffer( byte[] data )
+    {
+	if ( off_heap )
+	    {
+		ByteBuffer out = ByteBuffer.allocateDirect( data.length );
+		out.put( data );
+		out.flip();
+		return out;
+	    }
+	else
+	    return ByteBuffer.wrap( data );
+    }
+
+    private static void readFully( InputStream is, byte[] data ) throws IOException
+    { new DataInputStream( is ).readFully( data ); }
+
+    private static void closeQuietly( InputStream is )
+    {
+	if ( is != null )
+	    {
+		try { is.close(); }
+		catch ( IOException e )
+		    { e.printStackTrace(); }
+	    }
+    }
+
+    final static class Entry
+    {
+	ByteBuffer data; // never modified, we hand out only duplicates
+	String     etag;
+	long       timestamp;
+
+	Entry( ByteBuffer data, String etag, long timestamp )
+	{
+	    this.data      = data;
+	    this.etag      = etag;
+	    this.timestamp = timestamp;
+	}
+
+	int size()
+	{ return data.capacity(); }
+    }
+
+    final static class BoundedLruMap extends LinkedHashMap
+    {
+	int max_entries;
+
+	BoundedLruMap( int max_entries )
+	{ 
+	    super( 16, 0.75f, true ); 
+	    this.max_entries = max_entries;
+	}
+
+	protected boolean removeEldestEntry( Map.Entry eldest )
+	{ return size() > max_entries; }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+/**
+ * Identifies what a store knows about a uid, other than its scaled
+ * images, which are identified by ImageDataKeys.
+ */
+final class MetaKey
+{
+    final static byte SPEC     = 1; // the original's ImageSpec
+    final static byte RECORD   = 2; // the OriginRecord
+    final static byte ORIGINAL = 3; // the original's bytes
+
+    byte   kind;
+    String uid;
+
+    MetaKey( byte kind, String uid )
+    {
+	this.kind = kind;
+	this.uid  = uid;
+    }
+
+    public byte getKind()
+    { return kind; }
+
+    public String getUid()
+    { return uid; }
+
+    public boolean equals( Object o )
+    {
+	if (! (o instanceof MetaKey) )
+	    return false;
+	MetaKey other = (MetaKey) o;
+	return kind == other.kind && uid.equals( other.uid );
+    }
+
+    public int hashCode()
+    { return uid.hashCode() ^ kind; }
+}
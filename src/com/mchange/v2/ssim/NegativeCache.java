@@ -0,0 +1,96 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.util.*;
+
+/**
+ * Remembers, briefly, the uids of images we've failed to fetch or decode,
+ * and why, so that repeated requests for a broken image fail right away,
+ * without contacting its origin or decoding anything. Holds at most
+ * max_entries failures, evicting the least recently used first.
+ */
+final class NegativeCache
+{
+    // MT: unchanging after constructor
+    final int max_entries;
+
+    // MT: protected by this' lock
+    //     uids -> Entries, in access order
+    LinkedHashMap entries = new LinkedHashMap( 16, 0.75f, true )
+	{
+	    protected boolean removeEldestEntry( Map.Entry eldest )
+	    { return size() > max_entries; }
+	};
+
+    NegativeCache( int max_entries )
+    { this.max_entries = max_entries; }
+
+    /**
+     * @param ttl how long, in milliseconds, we remember the failure. If less 
+     *            than or equal to zero, we don't remember it at all.
+     */
+    public synchronized void put( String uid, ImageUnavailableException failure, long ttl )
+    {
+	if ( ttl > 0 )
+	    entries.put( uid, new Entry( failure.getStatus(), failure.getMessage(), System.currentTimeMillis() + ttl ) );
+    }
+
+    /**
+     * @return an exception describing a recent failure to find uid, or null if there was none
+     */
+    public ImageUnavailableException check( String uid )
+    {
+	Entry entry;
+	synchronized ( this )
+	    {
+		if ( entries.isEmpty() )
+		    return null;
+
+		entry = (Entry) entries.get( uid );
+		if ( entry == null )
+		    return null;
+		else if ( entry.expires <= System.currentTimeMillis() )
+		    {
+			entries.remove( uid );
+			return null;
+		    }
+	    }
+	return new ImageUnavailableException( entry.message + " [failed recently, not retried]", entry.status );
+    }
+
+    final static class Entry
+    {
+	int    status;
+	String message;
+	long   expires;
+
+	Entry( int status, String message, long expires )
+	{
+	    this.status  = status;
+	    this.message = message;
+	    this.expires = expires;
+	}
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Keeps everything (scaled images, originals, and the metadata that
+ * describes them) in memory outside the Java heap, within a fixed byte budget,
+ * for servers with a lot of RAM but a small heap and no fast local disk.
+ * Nothing survives a restart.
+ *
+ * Memory is allocated from the operating system in direct-buffer slabs, as
+ * it is needed, up to the budget. Slabs are carved into fixed-size pages, and
+ * each entry occupies as many pages as it needs, wherever they happen to be,
+ * so the arena never fragments. When we run out of pages, we evict entries
+ * least-recently-used first.
+ *
+ * Retrieved ImageData pins its pages until it is released, so that they can't
+ * be reused while someone is still reading them. Callers must release it.
+ */
+final class OffHeapPersistentStore implements SsimPersistentStore
+{
+    final static int PAGE_SIZE      = 1024;
+    final static int PAGES_PER_SLAB = 1024; // one megabyte slabs
+
+    // no one entry may take up more than this fraction of the budget
+    final static int MAX_ENTRY_FRACTION = 4;
+
+    // MT: unchanging after constructor
+    final int max_entry_pages;
+
+    // MT: protected by this' lock, except that slabs may be read without it, see pageBuffer(...)
+    ByteBuffer[]  slabs;          // allocated lazily, never replaced once allocated
+    int           slab_count = 0;
+    int[]         freePages;      // a stack of page numbers
+    int           free_count = 0;
+    LinkedHashMap entries    = new LinkedHashMap( 16, 0.75f, true ); //ImageDataKeys and MetaKeys -> Entries, in access order
+
+    /**
+     * @param max_size the maximum size of the store, in megabytes
+     */
+    OffHeapPersistentStore( long max_size )
+    {
+	if ( max_size <= 0 )
+	    throw new IllegalArgumentException( "An off-heap store requires a positive size: " + max_size );
+
+	int max_slabs = (int) Math.min( max_size, Integer.MAX_VALUE / PAGES_PER_SLAB );
+	this.slabs           = new ByteBuffer[ max_slabs ];
+	this.freePages       = new int[ max_slabs * PAGES_PER_SLAB ];
+	this.max_entry_pages = Math.max( 1, freePages.length / MAX_ENTRY_FRACTION );
+    }
+
+    public ImageSpec originalImageSpec( ImageDataKey maybeIncompleteKey ) throws SsimException
+    { return (ImageSpec) readObject( new MetaKey( MetaKey.SPEC, maybeIncompleteKey.getUid() ) ); }
+
+    public void store( ImageDataKey completeKey, ImageBuffer imageBytes, ImageSpec originalImageSpec ) throws SsimException
+    {
+	// like the directory store, we keep the first spec we're given
+	MetaKey specKey = new MetaKey( MetaKey.SPEC, completeKey.getUid() );
+	boolean has_spec;
+	synchronized ( this )
+	    { has_spec = entries.containsKey( specKey ); }
+	if (! has_spec )
+	    writeObject( specKey, surelySerializable( originalImageSpec ) );
+
+	try
+	    { put( completeKey, imageBytes.getInputStream(), imageBytes.size(), imageBytes.getETag() ); }
+	catch ( IOException e )
+	    {
+		e.printStackTrace();
+		throw new SsimException( e );
+	    }
+    }
+
+    public ImageData retrieve( ImageDataKey completeKey ) throws SsimException
+    {
+	Entry entry = retain( completeKey );
+	return ( entry == null ? null : new OffHeapImageData( completeKey.getMimeType(), entry, completeKey.getWidth(), completeKey.getHeight() ) );
+    }
+
+    public synchronized void noteServed( ImageDataKey completeKey, int length )
+    { entries.get( completeKey ); } // get(...) moves it to the most-recently-used end
+
+    public ImageData retrieveOriginal( String uid ) throws SsimException
+    {
+	Entry entry = retain( new MetaKey( MetaKey.ORIGINAL, uid ) );
+	return ( entry == null ? null : new OffHeapImageData( null, entry, -1, -1 ) );
+    }
+
+    public void storeOriginal( String uid, ImageBuffer imageBytes ) throws SsimException
+    {
+	try
+	    { put( new MetaKey( MetaKey.ORIGINAL, uid ), imageBytes.getInputStream(), imageBytes.size(), imageBytes.getETag() ); }
+	catch ( IOException e )
+	    {
+		e.printStackTrace();
+		throw new SsimException( e );
+	    }
+    }
+
+    public OriginRecord originRecord( String uid ) throws SsimException
+    { return (OriginRecord) readObject( new MetaKey( MetaKey.RECORD, uid ) ); }
+
+    public void storeOriginRecord( String uid, OriginRecord record ) throws SsimException
+    { writeObject( new MetaKey( MetaKey.RECORD, uid ), record ); }
+
+    // readers holding pages keep them until they release them,
+    // the slabs themselves are collected after that
+    public synchronized void close() throws SsimException
+    {
+	for ( Iterator ii = entries.values().iterator(); ii.hasNext(); )
+	    unref( (Entry) ii.next() );
+	entries.clear();
+    }
+
+    private synchronized Entry retain( Object key )
+    {
+	Entry out = (Entry) entries.get( key );
+	if ( out != null )
+	    ++out.ref_count;
+	return out;
+    }
+
+    private synchronized void release( Entry entry )
+    { unref( entry ); }
+
+    // MT: call only while holding this' lock
+    private void unref( Entry entry )
+    {
+	if ( --entry.ref_count == 0 )
+	    {
+		int[] pages = entry.pages;
+		for (int i = 0; i < pages.length; ++i)
+		    freePages[ free_count++ ] = pages[i];
+	    }
+    }
+
+    /**
+     * We copy the data into pages that nobody else can see,
+     * then replace any previous entry with the new one.
+     */
+    private void put( Object key, InputStream is, int length, String etag ) throws IOException
+    {
+	int[] pages = allocate( (length + PAGE_SIZE - 1) / PAGE_SIZE );
+	if ( pages == null ) // too big, or everything is in use. we just don't keep it
+	    return;
+
+	try
+	    {
+		byte[] tmp = new byte[ PAGE_SIZE ];
+		for (int i = 0, remaining = length; remaining > 0; ++i)
+		    {
+			int n = Math.min( remaining, PAGE_SIZE );
+			new DataInputStream( is ).readFully( tmp, 0, n );
+			pageBuffer( pages[i] ).put( tmp, 0, n );
+			remaining -= n;
+		    }
+	    }
+	catch ( IOException e )
+	    {
+		synchronized ( this )
+		    { unref( new Entry( pages, length, etag, 0 ) ); }
+		throw e;
+	    }
+	finally
+	    { is.close(); }
+
+	synchronized ( this )
+	    {
+		Entry old = (Entry) entries.put( key, new Entry( pages, length, etag, System.currentTimeMillis() ) );
+		if ( old != null )
+		    unref( old );
+	    }
+    }
+
+    // returns null if we can't free up enough pages
+    private synchronized int[] allocate( int num_pages )
+    {
+	if ( num_pages > max_entry_pages )
+	    return null;
+
+	Iterator eldestFirst = null;
+	while ( free_count < num_pages )
+	    {
+		if ( slab_count < slabs.length )
+		    addSlab();
+		else
+		    {
+			if ( eldestFirst == null )
+			    eldestFirst = entries.values().iterator();
+			if (! eldestFirst.hasNext() )
+			    return null;
+
+			// if someone is reading the entry, its pages
+			// will come back only once they're done
+			Entry victim = (Entry) eldestFirst.next();
+			eldestFirst.remove();
+			unref( victim );
+		    }
+	    }
+
+	int[] out = new int[ num_pages ];
+	for (int i = 0; i < num_pages; ++i)
+	    out[i] = freePages[ --free_count ];
+	return out;
+    }
+
+    // MT: call only while holding this' lock
+    private void addSlab()
+    {
+	slabs[ slab_count ] = ByteBuffer.allocateDirect( PAGES_PER_SLAB * PAGE_SIZE );
+	int first_page = slab_count * PAGES_PER_SLAB;
+	for (int i = PAGES_PER_SLAB - 1; i >= 0; --i)
+	    freePages[ free_count++ ] = first_page + i;
+	++slab_count;
+    }
+
+    // a view of just the one page, positioned at its start. we needn't lock to
+    // read slabs: whoever holds a page got it, under our lock, after its slab was set
+    private ByteBuffer pageBuffer( int page )
+    {
+	ByteBuffer out = slabs[ page / PAGES_PER_SLAB ].duplicate();
+	int offset = (page % PAGES_PER_SLAB) * PAGE_SIZE;
+	out.limit( offset + PAGE_SIZE );
+	out.position( offset );
+	return out;
+    }
+
+    private Object readObject( MetaKey key ) throws SsimException
+    {
+	Entry entry = retain( key );
+	if ( entry == null )
+	    return null;
+
+	ObjectInputStream ois = null;
+	try
+	    {
+		ois = new ObjectInputStream( new PagesInputStream( entry ) );
+		return ois.readObject();
+	    }
+	catch ( Exception e )
+	    {
+		e.printStackTrace();
+		throw new SsimException( e );
+	    }
+	finally
+	    { 
+		try { if ( ois != null ) ois.close(); }
+		catch ( IOException e )
+		    { e.printStackTrace(); }
+		release( entry );
+	    }
+    }
+
+    private void writeObject( MetaKey key, Object o ) throws SsimException
+    {
+	try
+	    {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream( baos );
+		oos.writeObject( o );
+		oos.close();
+		byte[] bytes = baos.toByteArray();
+		put( key, new ByteArrayInputStream( bytes ), bytes.length, null );
+	    }
+	catch ( IOException e )
+	    {
+		e.printStackTrace();
+		throw new SsimException( e );
+	    }
+    }
+
+    private static ImageSpec surelySerializable( ImageSpec spec )
+    {
+	if (spec instanceof Serializable)
+	    return spec;
+	else
+	    return new ConcreteImageSpec( spec.getMimeType(), spec.getTimestamp(), spec.getWidth(), spec.getHeight() );
+    }
+
+    final static class Entry
+    {
+	int[]  pages;
+	int    length;
+	String etag;
+	long   timestamp;
+
+	// MT: protected by the store's lock
+	int ref_count = 1; // the store's own reference, until the entry is replaced or evicted
+
+	Entry( int[] pages, int length, String etag, long timestamp )
+	{
+	    this.pages     = pages;
+	    this.length    = length;
+	    this.etag      = etag;
+	    this.timestamp = timestamp;
+	}
+    }
+
+    class PagesInputStream extends InputStream
+    {
+	Entry entry;
+	int   pos = 0;
+
+	PagesInputStream( Entry entry )
+	{ this.entry = entry; }
+
+	public int read()
+	{
+	    byte[] b = new byte[1];
+	    return ( read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff );
+	}
+
+	public int read( byte[] b, int off, int len )
+	{
+	    if ( len == 0 )
+		return 0;
+	    if ( pos >= entry.length )
+		return -1;
+
+	    int page_offset = pos % PAGE_SIZE;
+	    int n = Math.min( len, Math.min( PAGE_SIZE - page_offset, entry.length - pos ) );
+	    ByteBuffer page = pageBuffer( entry.pages[ pos / PAGE_SIZE ] );
+	    page.position( page.position() + page_offset );
+	    page.get( b, off, n );
+	    pos += n;
+	    return n;
+	}
+
+	public int available()
+	{ return entry.length - pos; }
+    }
+
+    /**
+     * Pins its entry's pages until released. Every caller must release() it, 
+     * pages that are never released are lost to the store.
+     */
+    final class OffHeapImageData extends AbstractImageData
+    {
+	// MT: protected by this' lock
+	Entry entry; // null once released
+
+	OffHeapImageData( String mimeType, Entry entry, int width, int height )
+	{
+	    super( mimeType, entry.timestamp, entry.length, width, height );
+	    this.entry = entry;
+	}
+
+	public synchronized InputStream getInputStream() throws IOException
+	{
+	    if ( entry == null )
+		throw new IOException( "Image data has already been released." );
+	    return new PagesInputStream( entry );
+	}
+
+	public synchronized String getETag()
+	{ return ( entry == null ? null : entry.etag ); }
+
+	public void release()
+	{
+	    Entry released;
+	    synchronized ( this )
+		{
+		    released = entry;
+		    entry = null;
+		}
+	    if ( released != null )
+		OffHeapPersistentStore.this.release( released );
+	}
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Opens connections to the origins of original images, with timeouts,
+ * and with a cap on how many connections may be open to any one host at once,
+ * so that one slow origin can't tie up every thread we have. If given a
+ * record of a previous response, asks HTTP origins only whether the
+ * image has changed since.
+ *
+ * We rely on the JDK's HttpURLConnection to keep connections alive and reuse
+ * them. That only works if every response body is read to the end (or is 
+ * short enough for the JDK to drain) and closed, so every Response must
+ * be release()d, or else its stream closed, and we drain the bodies
+ * of error responses ourselves.
+ */
+final class OriginFetcher
+{
+    final static int DRAIN_BUFFER_SIZE = 4096;
+
+    // MT: unchanging after constructor
+    final int connect_timeout;  //millis
+    final int read_timeout;     //millis
+    final int max_per_host;
+
+    // MT: protected by its own lock
+    //     "host:port" -> Semaphore
+    final Map hostPermits = new HashMap();
+
+    /**
+     * @param max_per_host the maximum number of simultaneous connections to any one
+     *                     HTTP origin host, or less than or equal to zero for no limit
+     */
+    OriginFetcher( int connect_timeout, int read_timeout, int max_per_host )
+    {
+	this.connect_timeout = connect_timeout;
+	this.read_timeout    = read_timeout;
+	this.max_per_host    = max_per_host;
+    }
+
+    /**
+     * @param uid        used only to guess a mime type, if the origin doesn't tell us
+     * @param validators what the origin told us the last time we asked, or null
+     *
+     * @return the origin's response, which may be "not modified" (with no body),
+     *         if we offered validators. The Response must be released.
+     *
+     * @throws ImageUnavailableException if the origin doesn't have the image, responds with an error, 
+     *                                   or can't be reached, or (with status SERVICE_UNAVAILABLE)
+     *                                   if we give up waiting for a free connection to its host
+     */
+    Response fetch( String uid, URL url, OriginRecord validators ) throws Exception
+    {
+	URLConnection uc = url.openConnection();
+	uc.setConnectTimeout( connect_timeout );
+	uc.setReadTimeout( read_timeout );
+
+	if (! (uc instanceof HttpURLConnection) ) //file:, jar:, and such need none of this
+	    {
+		// connecting is cheap, and tells us if the image is there at all
+		try
+		    { uc.connect(); }
+		catch ( IOException e )
+		    { throw unavailable( url, e ); }
+		return new Response( uid, uc, null, false );
+	    }
+
+	HttpURLConnection http = (HttpURLConnection) uc;
+	if ( validators != null )
+	    {
+		if ( validators.getETag() != null )
+		    http.setRequestProperty( "If-None-Match", validators.getETag() );
+		if ( validators.getLastModified() != null )
+		    http.setRequestProperty( "If-Modified-Since", validators.getLastModified() );
+	    }
+
+	// like URLConnection, we take a timeout of zero to mean forever
+	Semaphore permits = permitsFor( url );
+	if ( permits != null )
+	    {
+		if ( connect_timeout == 0 )
+		    permits.acquire();
+		else if (! permits.tryAcquire( connect_timeout, TimeUnit.MILLISECONDS ) )
+		    throw new ImageUnavailableException( "Timed out waiting for a connection to " + url.getHost() + 
+							 ", to which " + max_per_host + " connections are already open.",
+							 ImageUnavailableException.SERVICE_UNAVAILABLE );
+	    }
+
+	boolean handed_off = false;
+	try
+	    {
+		int status = http.getResponseCode();
+		if ( status == HttpURLConnection.HTTP_NOT_MODIFIED )
+		    {
+			drain( http, false );
+			return new Response( uid, uc, null, true );
+		    }
+		else if ( status < 200 || status >= 300 )
+		    {
+			drain( http, true );
+			
+			// the origin's own failures are not our clients' fault
+			boolean missing = ( status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE );
+			throw new ImageUnavailableException( "Origin " + url + " responded with HTTP status " + status + '.',
+							     ( missing ? ImageUnavailableException.NOT_FOUND : ImageUnavailableException.BAD_GATEWAY ) );
+		    }
+		else
+		    {
+			Response out = new Response( uid, uc, permits, false );
+			handed_off = true;
+			return out;
+		    }
+	    }
+	catch ( IOException e )
+	    {
+		drain( http, true );
+		throw unavailable( url, e );
+	    }
+	finally
+	    {
+		if ( permits != null && !handed_off )
+		    permits.release();
+	    }
+    }
+
+    /**
+     * @return true if url's origin is reached over the network, rather than
+     *         being local (a file, a resource of the web application, a jar entry...)
+     */
+    static boolean isRemote( URL url )
+    {
+	String protocol = url.getProtocol();
+	return "http".equalsIgnoreCase( protocol ) || "https".equalsIgnoreCase( protocol );
+    }
+
+    private static ImageUnavailableException unavailable( URL url, IOException e )
+    {
+	int status;
+	if ( e instanceof FileNotFoundException )
+	    status = ImageUnavailableException.NOT_FOUND;
+	else if ( e instanceof SocketTimeoutException )
+	    status = ImageUnavailableException.GATEWAY_TIMEOUT;
+	else
+	    status = ImageUnavailableException.BAD_GATEWAY;
+	return new ImageUnavailableException( "Could not fetch " + url + ": " + e, e, status );
+    }
+
+    private Semaphore permitsFor( URL url )
+    {
+	if ( max_per_host <= 0 )
+	    return null;
+
+	String hostKey = url.getHost().toLowerCase() + ':' + ( url.getPort() < 0 ? url.getDefaultPort() : url.getPort() );
+	synchronized ( hostPermits )
+	    {
+		Semaphore out = (Semaphore) hostPermits.get( hostKey );
+		if ( out == null )
+		    {
+			out = new Semaphore( max_per_host, true );
+			hostPermits.put( hostKey, out );
+		    }
+		return out;
+	    }
+    }
+
+    // reading bodies to the end lets the JDK reuse the connection
+    private static void drain( HttpURLConnection http, boolean error )
+    {
+	InputStream is = null;
+	try
+	    {
+		is = ( error ? http.getErrorStream() : http.getInputStream() );
+		if ( is != null )
+		    {
+			byte[] buffer = new byte[ DRAIN_BUFFER_SIZE ];
+			while ( is.read( buffer ) >= 0 )
+			    ;
+		    }
+	    }
+	catch ( IOException e ) //the connection just won't be reused
+	    {}
+	finally
+	    {
+		if ( is != null )
+		    {
+			try { is.close(); }
+			catch ( IOException e )
+			    {}
+		    }
+	    }
+    }
+
+    /**
+     * An origin's response. Releasing the response, or closing its stream,
+     * returns its per-host permit.
+     */
+    final static class Response implements ImageData
+    {
+	String        uid;
+	URLConnection uc;
+	boolean       not_modified;
+
+	// MT: protected by this' lock
+	Semaphore permits; // null once released, or if we hold none
+	boolean   opened = false;
+
+	Response( String uid, URLConnection uc, Semaphore permits, boolean not_modified )
+	{
+	    this.uid          = uid;
+	    this.uc           = uc;
+	    this.permits      = permits;
+	    this.not_modified = not_modified;
+	}
+
+	/**
+	 * @return true if the origin told us the image hasn't changed since the
+	 *         validators we offered. Such responses have no body.
+	 */
+	public boolean isNotModified()
+	{ return not_modified; }
+
+	/**
+	 * @return true if the response came over an HTTP connection, which
+	 *         it holds (and perhaps a per-host permit) until its body has been read
+	 */
+	public boolean holdsConnection()
+	{ return uc instanceof HttpURLConnection; }
+
+	public String getMimeType()
+	{ 
+	    String out = uc.getContentType(); 
+	    if (out == null)
+		out = SsimUtils.mimeTypeFromUid( uid );
+	    return out;
+	}
+
+	public synchronized InputStream getInputStream() throws IOException
+	{ 
+	    if ( not_modified )
+		throw new IOException( "A 'not modified' response from the origin of " + uid + " has no body." );
+	    if ( opened )
+		throw new IOException( "The body of the response from the origin of " + uid + " has already been read." );
+	    opened = true;
+
+	    InputStream is;
+	    try 
+		{ is = uc.getInputStream(); }
+	    catch ( IOException e )
+		{
+		    releasePermit();
+		    throw e;
+		}
+	    return new BufferedInputStream( is, AbstractImageFinder.BUFFER_SZ )
+		{
+		    boolean closed = false;
+
+		    public void close() throws IOException
+		    {
+			if (! closed )
+			    {
+				closed = true;
+				try { super.close(); }
+				finally { releasePermit(); }
+			    }
+		    }
+		};
+	}
+		
+	public long getTimestamp()
+	{ return uc.getLastModified(); }
+		
+	public int getContentLength()
+	{ return uc.getContentLength(); }
+
+	// only meaningful if we serve the raw image unmodified,
+	// but that's the only time anyone will ask
+	public String getETag()
+	{ 
+	    String out = getValidatorETag();
+	    return ( out == null || out.startsWith("W/") ? null : out );
+	}
+
+	/**
+	 * @return the origin's ETag, even if weak, for If-None-Match
+	 */
+	public String getValidatorETag()
+	{ return uc.getHeaderField( "ETag" ); }
+
+	/**
+	 * @return the origin's Last-Modified header, verbatim, for If-Modified-Since
+	 */
+	public String getValidatorLastModified()
+	{ return uc.getHeaderField( "Last-Modified" ); }
+
+	/**
+	 * @return how long, in seconds, the origin says its image will stay fresh, or -1 if it doesn't say
+	 */
+	public long getMaxAge()
+	{ return SsimUtils.maxAge( uc.getHeaderField( "Cache-Control" ) ); }
+
+	public int getWidth()
+	{ return -1; }
+
+	public int getHeight()
+	{ return -1; }
+
+	public File getFile()
+	{ return null; }
+
+	public FileChannel getChannel()
+	{ return null; }
+
+	/**
+	 * If we never read the body, we close it unread, and leave it to the
+	 * JDK to decide whether the connection is worth draining and keeping.
+	 * Responses with no permit (file: URLs, or HTTP with no per-host limit)
+	 * hold a stream or socket all the same.
+	 */
+	public void release()
+	{
+	    boolean close_unread;
+	    synchronized ( this )
+		{
+		    close_unread = ( !opened && !not_modified );
+		    opened = true;
+		}
+	    if ( close_unread )
+		{
+		    try { uc.getInputStream().close(); }
+		    catch ( IOException e )
+			{}
+		    releasePermit(); // if we hold one
+		}
+	}
+
+	private synchronized void releasePermit()
+	{
+	    if ( permits != null )
+		{
+		    permits.release();
+		    permits = null;
+		}
+	}
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.io.*;
+import com.mchange.v2.ser.UnsupportedVersionException;
+
+/**
+ * What we last learned about an original image from its origin, and when.
+ * Within its freshness window, we trust the record, and don't contact the
+ * origin at all to check whether our derived images are up-to-date.
+ * Once it is stale, its validators let us ask the origin only whether
+ * the image has changed.
+ */
+final class OriginRecord implements Serializable
+{
+    String mimeType;     //can be null
+    long   timestamp;    //the origin's last-modified time, can be -1
+    long   validated;    //when we last heard from the origin, in millis
+    long   max_age;      //the origin's own max-age, in seconds, -1 if it specified none
+    String etag;         //the origin's ETag, possibly weak, verbatim, can be null
+    String lastModified; //the origin's Last-Modified header, verbatim, can be null
+    long   fetched;      //when we last read the image itself from the origin, in millis
+
+    OriginRecord( String mimeType, long timestamp, long validated, long max_age, String etag, String lastModified, long fetched )
+    {
+	this.mimeType     = mimeType;
+	this.timestamp    = timestamp;
+	this.validated    = validated;
+	this.max_age      = max_age;
+	this.etag         = etag;
+	this.lastModified = lastModified;
+	this.fetched      = fetched;
+    }
+
+    /**
+     * @return a copy of this record, revalidated at validated, with a possibly updated max_age
+     */
+    OriginRecord revalidated( long validated, long max_age )
+    { return new OriginRecord( mimeType, timestamp, validated, max_age, etag, lastModified, fetched ); }
+
+    public String getMimeType()
+    { return mimeType; }
+
+    public long getTimestamp()
+    { return timestamp; }
+
+    public long getValidated()
+    { return validated; }
+
+    public long getMaxAge()
+    { return max_age; }
+
+    public String getETag()
+    { return etag; }
+
+    public String getLastModified()
+    { return lastModified; }
+
+    public long getFetched()
+    { return fetched; }
+
+    /**
+     * @return true if we can ask the origin whether the image has changed, without fetching it
+     */
+    public boolean hasValidators()
+    { return etag != null || lastModified != null; }
+
+    /**
+     * @param default_max_age the window, in seconds, to use if the origin specified none
+     */
+    public boolean isFresh( long now, long default_max_age )
+    {
+	long window = ( max_age >= 0 ? max_age : default_max_age );
+	return window > 0 && now >= validated && now < validated + window * 1000;
+    }
+
+    //Serialization Stuff
+    static final long serialVersionUID = 1; //override to take control of versioning
+    private final static short VERSION = 0x0002;
+    
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+	out.writeShort(VERSION);
+
+	//VERSION 1
+	out.writeObject(mimeType);
+	out.writeLong(timestamp);
+	out.writeLong(validated);
+	out.writeLong(max_age);
+
+	//VERSION 2
+	out.writeObject(etag);
+	out.writeObject(lastModified);
+	out.writeLong(fetched);
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+	short version = in.readShort();
+	switch (version)
+	    {
+	    case 0x0001:
+		this.mimeType  = (String) in.readObject();
+		this.timestamp = in.readLong();
+		this.validated = in.readLong();
+		this.max_age   = in.readLong();
+		this.fetched   = this.validated;
+		break;
+	    case 0x0002:
+		this.mimeType     = (String) in.readObject();
+		this.timestamp    = in.readLong();
+		this.validated    = in.readLong();
+		this.max_age      = in.readLong();
+		this.etag         = (String) in.readObject();
+		this.lastModified = (String) in.readObject();
+		this.fetched      = in.readLong();
+		break;
+	    default:
+		throw new UnsupportedVersionException(this, version);
+	    }
+    }
+}
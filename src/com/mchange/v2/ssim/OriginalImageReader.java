@@ -0,0 +1,166 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.awt.image.*;
+import java.io.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+import com.mchange.v1.io.InputStreamUtils;
+
+/**
+ * Wraps an ImageReader over an original image's stream, so that
+ * we can learn the image's dimensions from its header without
+ * decoding any pixels, and then go on to decode it, if we must,
+ * without refetching or rereading anything. The original's stream
+ * is not opened until it is first needed.
+ *
+ * Not thread-safe. Must be closed.
+ */
+final class OriginalImageReader
+{
+    ImageData raw;
+
+    InputStream      is     = null;
+    ImageInputStream iis    = null;
+    ImageReader      reader = null;
+
+    OriginalImageReader( ImageData raw )
+    { this.raw = raw; }
+
+    private void ensureOpen() throws IOException, SsimException
+    {
+	if ( reader != null )
+	    return;
+
+	try
+	    {
+		this.is  = raw.getInputStream();
+		this.iis = ImageCodecPool.createImageInputStream( is );
+		if ( iis == null )
+		    throw new SsimException("Could not create an ImageInputStream to read an original image.");
+		this.reader = ImageCodecPool.checkoutReader( iis, raw.getMimeType() );
+		if ( reader == null )
+		    throw new ImageUnavailableException( "No ImageReader is registered that can read an original image" +
+							 " of type " + raw.getMimeType() + '.',
+							 ImageUnavailableException.UNSUPPORTED_MEDIA_TYPE );
+
+		// we only ever look at the first image, and never at metadata
+		reader.setInput( iis, true, true );
+	    }
+	catch ( IOException e )
+	    {
+		close();
+		throw e;
+	    }
+	catch ( SsimException e )
+	    {
+		close();
+		throw e;
+	    }
+    }
+
+    public int getWidth() throws IOException, SsimException
+    { 
+	ensureOpen();
+	try
+	    { return reader.getWidth( 0 ); }
+	catch ( IIOException e )
+	    { throw undecodable( e ); }
+	catch ( RuntimeException e )
+	    { throw undecodable( e ); }
+    }
+
+    public int getHeight() throws IOException, SsimException
+    { 
+	ensureOpen();
+	try
+	    { return reader.getHeight( 0 ); }
+	catch ( IIOException e )
+	    { throw undecodable( e ); }
+	catch ( RuntimeException e )
+	    { throw undecodable( e ); }
+    }
+
+    public BufferedImage read() throws IOException, SsimException
+    { 
+	ensureOpen();
+	try
+	    { return reader.read( 0 ); }
+	catch ( IIOException e )
+	    { throw undecodable( e ); }
+	catch ( RuntimeException e )
+	    { throw undecodable( e ); }
+    }
+
+    public BufferedImage read( int subsample_x, int subsample_y ) throws IOException, SsimException
+    {
+	if ( subsample_x == 1 && subsample_y == 1 )
+	    return read();
+	else
+	    {
+		ensureOpen();
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceSubsampling( subsample_x, subsample_y, 0, 0 );
+		try
+		    { return reader.read( 0, param ); }
+		catch ( IIOException e )
+		    { throw undecodable( e ); }
+		catch ( RuntimeException e )
+		    { throw undecodable( e ); }
+	    }
+    }
+
+    // readers throw IIOExceptions for bad data, but also wrap failures of
+    // the stream beneath them, which say nothing about the image itself.
+    // some readers just blow up on bad data.
+    private ImageUnavailableException undecodable( Exception e ) throws IOException
+    {
+	Throwable cause = e.getCause();
+	if ( e instanceof IIOException && cause instanceof IOException && !(cause instanceof IIOException) )
+	    throw (IIOException) e;
+	else
+	    return new ImageUnavailableException( "Could not decode an original image of type " + raw.getMimeType() + ": " + e, 
+						  e, 
+						  ImageUnavailableException.UNSUPPORTED_MEDIA_TYPE );
+    }
+
+    public void close()
+    {
+	// ensureOpen() may have failed partway through, so we check everything
+	if ( reader != null )
+	    ImageCodecPool.checkinReader( reader );
+	if ( iis != null )
+	    {
+		try { iis.close(); }
+		catch ( IOException e )
+		    { e.printStackTrace(); }
+	    }
+	InputStreamUtils.attemptClose( is );
+
+	reader = null;
+	iis    = null;
+	is     = null;
+    }
+}
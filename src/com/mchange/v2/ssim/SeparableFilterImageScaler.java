@@ -0,0 +1,437 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.awt.image.*;
+import java.util.concurrent.*;
+
+/**
+ * Scales images with a separable filter, horizontally and then vertically,
+ * working directly on int[] (packed ARGB) pixel arrays. Filter weights are computed 
+ * once per output row and column, and the inner loops allocate nothing.
+ *
+ * Images with alpha are resampled premultiplied, so that transparent
+ * pixels don't bleed their color into their neighbors.
+ *
+ * Large images are split into horizontal bands, which are resampled
+ * in parallel by threads of the common fork-join pool, while the calling thread
+ * works on a band of its own. The number of pool threads helping at any one time,
+ * summed over all scales in progress, is capped, and a scale that finds no help
+ * available just proceeds on the calling thread.
+ */
+public final class SeparableFilterImageScaler implements ImageScaler
+{
+    public final static int BOX      = 0;
+    public final static int LANCZOS3 = 1;
+
+    public final static int DFLT_PARALLEL_THRESHOLD = 250000; //output pixels
+
+    final static float INV_255 = 1f / 255f;
+
+    // MT: unchanging after constructor
+    final int filter;
+    final int parallel_threshold;
+    final int max_parallelism;
+
+    // MT: thread-safe, permits for common-pool threads to help with bands
+    final Semaphore helperPermits;
+
+    public SeparableFilterImageScaler()
+    { this( LANCZOS3 ); }
+
+    public SeparableFilterImageScaler( int filter )
+    { this( filter, DFLT_PARALLEL_THRESHOLD, Runtime.getRuntime().availableProcessors() - 1 ); }
+
+    /**
+     * @param parallel_threshold the number of output pixels above which scales are split into
+     *                           parallel bands, or less than or equal to zero never to split scales
+     * @param max_parallelism    the maximum number of fork-join pool threads that may, in total,
+     *                           be helping with scales at any one time
+     */
+    public SeparableFilterImageScaler( int filter, int parallel_threshold, int max_parallelism )
+    {
+	if ( filter != BOX && filter != LANCZOS3 )
+	    throw new IllegalArgumentException("Unknown filter: " + filter);
+	this.filter             = filter;
+	this.parallel_threshold = parallel_threshold;
+	this.max_parallelism    = Math.max( 0, max_parallelism );
+	this.helperPermits      = new Semaphore( this.max_parallelism );
+    }
+
+    public BufferedImage scale( BufferedImage source, int width, int height, int imageType )
+    {
+	final int     src_width  = source.getWidth();
+	final int     src_height = source.getHeight();
+	final boolean src_alpha  = source.getColorModel().hasAlpha();
+	final boolean out_alpha  = hasAlpha( imageType );
+
+	final int[] src = argbPixels( source );
+	final Contributions xc = contributions( src_width, width );
+	final Contributions yc = contributions( src_height, height );
+
+	// horizontally scaled, but still source height
+	final int[] tmp = new int[ width * src_height ];
+
+	BufferedImage out = new BufferedImage( width, height, ( out_alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB ) );
+	final int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+	final int   w   = width;
+
+	int helpers = acquireHelpers( ((long) width) * height );
+	try
+	    {
+		runBands( src_height, helpers, new Band()
+		    {
+			void rows( int start_row, int end_row )
+			{
+			    if ( src_alpha )
+				scaleRowsPremultiplied( src, src_width, tmp, w, xc, start_row, end_row );
+			    else
+				scaleRowsOpaque( src, src_width, tmp, w, xc, start_row, end_row );
+			}
+		    } );
+		runBands( height, helpers, new Band()
+		    {
+			void rows( int start_row, int end_row )
+			{ scaleColumns( tmp, dst, w, yc, src_alpha && out_alpha, start_row, end_row ); }
+		    } );
+	    }
+	finally
+	    { helperPermits.release( helpers ); }
+	return out;
+    }
+
+    // we never block for help. we take what is available, up to what the scale merits.
+    private int acquireHelpers( long out_pixels )
+    {
+	if ( parallel_threshold <= 0 || out_pixels <= parallel_threshold )
+	    return 0;
+
+	long merited = Math.min( out_pixels / parallel_threshold, ForkJoinPool.getCommonPoolParallelism() );
+	for (int n = (int) Math.min( merited, max_parallelism ); n > 0; --n)
+	    {
+		if ( helperPermits.tryAcquire( n ) )
+		    return n;
+	    }
+	return 0;
+    }
+
+    /**
+     * Splits [0, rows) into helpers + 1 bands, forks all but the first into
+     * the common pool, runs the first on the calling thread, and waits for the rest.
+     */
+    private static void runBands( int rows, int helpers, final Band band )
+    {
+	int bands = Math.min( helpers + 1, rows );
+	if ( bands <= 1 )
+	    {
+		band.rows( 0, rows );
+		return;
+	    }
+
+	ForkJoinTask[] forked = new ForkJoinTask[ bands - 1 ];
+	for (int i = 1; i < bands; ++i)
+	    {
+		final int start_row = (int) (((long) rows) * i / bands);
+		final int end_row   = (int) (((long) rows) * (i + 1) / bands);
+		forked[ i - 1 ] = ForkJoinPool.commonPool().submit( new Runnable()
+		    {
+			public void run()
+			{ band.rows( start_row, end_row ); }
+		    } );
+	    }
+
+	boolean ok = false;
+	try
+	    {
+		band.rows( 0, rows / bands );
+		for (int i = 0; i < forked.length; ++i)
+		    forked[i].join();
+		ok = true;
+	    }
+	finally
+	    {
+		// never return while helpers might still be writing, even if we've failed
+		if (! ok )
+		    {
+			for (int i = 0; i < forked.length; ++i)
+			    forked[i].quietlyJoin();
+		    }
+	    }
+    }
+
+    static abstract class Band
+    {
+	abstract void rows( int start_row, int end_row );
+    }
+
+    // we only produce INT_ARGB or INT_RGB, so all we need to know is whether to keep alpha
+    private static boolean hasAlpha( int imageType )
+    {
+	switch ( imageType )
+	    {
+	    case BufferedImage.TYPE_INT_ARGB:
+	    case BufferedImage.TYPE_INT_ARGB_PRE:
+	    case BufferedImage.TYPE_4BYTE_ABGR:
+	    case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+		return true;
+	    default:
+		return false;
+	    }
+    }
+
+    /**
+     * Reads the packed-ARGB pixels of rows [start_row, end_row) of src into tmp,
+     * scaled horizontally. Source alpha is ignored.
+     */
+    static void scaleRowsOpaque( int[] src, int src_width, int[] tmp, int width, Contributions xc, int start_row, int end_row )
+    {
+	int     n       = xc.n;
+	int[]   indices = xc.indices;
+	float[] weights = xc.weights;
+	for (int y = start_row; y < end_row; ++y)
+	    {
+		int src_row = y * src_width;
+		int tmp_row = y * width;
+		for (int x = 0, base = 0; x < width; ++x, base += n)
+		    {
+			float r = 0, g = 0, b = 0;
+			for (int k = 0; k < n; ++k)
+			    {
+				int   p = src[ src_row + indices[ base + k ] ];
+				float w = weights[ base + k ];
+				r += w * ((p >> 16) & 0xFF);
+				g += w * ((p >>  8) & 0xFF);
+				b += w * ( p        & 0xFF);
+			    }
+			tmp[ tmp_row + x ] = 0xFF000000 | (clamp( r ) << 16) | (clamp( g ) << 8) | clamp( b );
+		    }
+	    }
+    }
+
+    /**
+     * Reads the packed-ARGB pixels of rows [start_row, end_row) of src into tmp,
+     * scaled horizontally and premultiplied by alpha.
+     */
+    static void scaleRowsPremultiplied( int[] src, int src_width, int[] tmp, int width, Contributions xc, int start_row, int end_row )
+    {
+	int     n       = xc.n;
+	int[]   indices = xc.indices;
+	float[] weights = xc.weights;
+	for (int y = start_row; y < end_row; ++y)
+	    {
+		int src_row = y * src_width;
+		int tmp_row = y * width;
+		for (int x = 0, base = 0; x < width; ++x, base += n)
+		    {
+			float a = 0, r = 0, g = 0, b = 0;
+			for (int k = 0; k < n; ++k)
+			    {
+				int   p  = src[ src_row + indices[ base + k ] ];
+				float w  = weights[ base + k ];
+				float pa = (p >>> 24);
+				float wa = w * pa * INV_255;
+				a += w * pa;
+				r += wa * ((p >> 16) & 0xFF);
+				g += wa * ((p >>  8) & 0xFF);
+				b += wa * ( p        & 0xFF);
+			    }
+			tmp[ tmp_row + x ] = (clamp( a ) << 24) | (clamp( r ) << 16) | (clamp( g ) << 8) | clamp( b );
+		    }
+	    }
+    }
+
+    /**
+     * Scales the rows [start_row, end_row) of dst vertically from tmp. If unpremultiply
+     * is true, tmp holds premultiplied pixels, and dst should not. Otherwise, alpha
+     * from tmp is copied through as-is.
+     */
+    static void scaleColumns( int[] tmp, int[] dst, int width, Contributions yc, boolean unpremultiply, int start_row, int end_row )
+    {
+	int     n       = yc.n;
+	int[]   indices = yc.indices;
+	float[] weights = yc.weights;
+
+	// one row of accumulators, allocated once, and visited row-by-row for cache-friendliness
+	float[] acc = new float[ width * 4 ];
+	for (int y = start_row; y < end_row; ++y)
+	    {
+		java.util.Arrays.fill( acc, 0f );
+		for (int k = 0, base = y * n; k < n; ++k)
+		    {
+			int   tmp_row = indices[ base + k ] * width;
+			float w       = weights[ base + k ];
+			for (int x = 0, j = 0; x < width; ++x, j += 4)
+			    {
+				int p = tmp[ tmp_row + x ];
+				acc[ j     ] += w * (p >>> 24);
+				acc[ j + 1 ] += w * ((p >> 16) & 0xFF);
+				acc[ j + 2 ] += w * ((p >>  8) & 0xFF);
+				acc[ j + 3 ] += w * ( p        & 0xFF);
+			    }
+		    }
+
+		int dst_row = y * width;
+		for (int x = 0, j = 0; x < width; ++x, j += 4)
+		    {
+			int a = clamp( acc[ j ] );
+			if ( unpremultiply && a > 0 && a < 0xFF )
+			    {
+				float f = 255f / a;
+				dst[ dst_row + x ] = (a << 24) | (clamp( acc[ j + 1 ] * f ) << 16) | (clamp( acc[ j + 2 ] * f ) << 8) | clamp( acc[ j + 3 ] * f );
+			    }
+			else
+			    dst[ dst_row + x ] = (a << 24) | (clamp( acc[ j + 1 ] ) << 16) | (clamp( acc[ j + 2 ] ) << 8) | clamp( acc[ j + 3 ] );
+		    }
+	    }
+    }
+
+    private static int clamp( float f )
+    {
+	int i = (int) (f + 0.5f);
+	return ( i < 0 ? 0 : ( i > 0xFF ? 0xFF : i ) );
+    }
+
+    /**
+     * @return the pixels of image as packed ARGB (alpha may be garbage if the image has no alpha).
+     *         For int-packed images, this may be the image's own raster data, which must not be modified.
+     */
+    static int[] argbPixels( BufferedImage image )
+    {
+	int            width  = image.getWidth();
+	int            height = image.getHeight();
+	WritableRaster raster = image.getRaster();
+	DataBuffer     db     = raster.getDataBuffer();
+
+	boolean untranslated = ( raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0 && db.getOffset() == 0 );
+	if ( untranslated )
+	    {
+		SampleModel sm = raster.getSampleModel();
+		switch ( image.getType() )
+		    {
+		    case BufferedImage.TYPE_INT_RGB:
+		    case BufferedImage.TYPE_INT_ARGB:
+			if ( ((SinglePixelPackedSampleModel) sm).getScanlineStride() == width )
+			    return ((DataBufferInt) db).getData();
+			break;
+		    case BufferedImage.TYPE_3BYTE_BGR:
+			if ( ((ComponentSampleModel) sm).getScanlineStride() == width * 3 )
+			    {
+				byte[] data = ((DataBufferByte) db).getData();
+				int[]  out  = new int[ width * height ];
+				for (int i = 0, j = 0, len = out.length; i < len; ++i, j += 3)
+				    out[i] = 0xFF000000 | ((data[j + 2] & 0xFF) << 16) | ((data[j + 1] & 0xFF) << 8) | (data[j] & 0xFF);
+				return out;
+			    }
+			break;
+		    case BufferedImage.TYPE_4BYTE_ABGR:
+			if ( ((ComponentSampleModel) sm).getScanlineStride() == width * 4 )
+			    {
+				byte[] data = ((DataBufferByte) db).getData();
+				int[]  out  = new int[ width * height ];
+				for (int i = 0, j = 0, len = out.length; i < len; ++i, j += 4)
+				    out[i] = ((data[j] & 0xFF) << 24) | ((data[j + 3] & 0xFF) << 16) | ((data[j + 2] & 0xFF) << 8) | (data[j + 1] & 0xFF);
+				return out;
+			    }
+			break;
+		    default:
+			break;
+		    }
+	    }
+
+	// everything else gets converted by Java2D
+	return image.getRGB( 0, 0, width, height, null, 0, width );
+    }
+
+    private float filterSupport()
+    { return ( filter == BOX ? 0.5f : 3f ); }
+
+    private double filterWeight( double x )
+    {
+	if ( filter == BOX )
+	    return ( x >= -0.5 && x < 0.5 ? 1 : 0 );
+	else // LANCZOS3
+	    {
+		if ( x == 0 )
+		    return 1;
+		else if ( x <= -3 || x >= 3 )
+		    return 0;
+		else
+		    {
+			double pix = Math.PI * x;
+			return ( 3 * Math.sin( pix ) * Math.sin( pix / 3 ) ) / ( pix * pix );
+		    }
+	    }
+    }
+
+    /**
+     * For each of dst_size output pixels, finds the source pixels and weights
+     * that contribute to it. When scaling down, the filter is stretched to cover
+     * all source pixels, so nothing is skipped.
+     */
+    Contributions contributions( int src_size, int dst_size )
+    {
+	double scale        = ((double) src_size) / dst_size;
+	double filter_scale = Math.max( scale, 1.0 );
+	double support      = filterSupport() * filter_scale;
+	int    n            = (int) Math.ceil( support * 2 ) + 1;
+
+	int[]   indices = new int[ n * dst_size ];
+	float[] weights = new float[ n * dst_size ];
+	for (int i = 0; i < dst_size; ++i)
+	    {
+		double center = (i + 0.5) * scale;
+		int    start  = (int) Math.floor( center - support );
+		int    base   = i * n;
+		double sum    = 0;
+		for (int k = 0; k < n; ++k)
+		    {
+			int    j = start + k;
+			double w = filterWeight( ( j + 0.5 - center ) / filter_scale );
+			indices[ base + k ] = ( j < 0 ? 0 : ( j >= src_size ? src_size - 1 : j ) ); // edge pixels extend outward
+			weights[ base + k ] = (float) w;
+			sum += w;
+		    }
+		if ( sum != 0 )
+		    {
+			for (int k = 0; k < n; ++k)
+			    weights[ base + k ] /= sum;
+		    }
+	    }
+	return new Contributions( n, indices, weights );
+    }
+
+    final static class Contributions
+    {
+	int     n;       // taps per output pixel
+	int[]   indices; // n per output pixel
+	float[] weights; // n per output pixel, normalized
+
+	Contributions( int n, int[] indices, float[] weights )
+	{
+	    this.n       = n;
+	    this.indices = indices;
+	    this.weights = weights;
+	}
+    }
+}
@@ -30,9 +30,38 @@ interface SsimPersistentStore extends ClosableResource
     public ImageSpec originalImageSpec( ImageDataKey maybeIncompleteKey )
 	throws SsimException;
 
-    public void store( ImageDataKey completeKey, byte[] imageBytes, ImageSpec completeOriginalImageSpec ) throws SsimException;
+    /**
+     * The store must not retain or release imageBytes. The caller holds its reference until store(...) returns.
+     */
+    public void store( ImageDataKey completeKey, ImageBuffer imageBytes, ImageSpec completeOriginalImageSpec ) throws SsimException;
 
     public ImageData retrieve( ImageDataKey completeKey ) throws SsimException;
 
+    /**
+     * Tells the store that a tier in front of it has just served completeKey's image,
+     * length bytes, without asking the store, so that the store can count the hit
+     * as if it had served the image itself.
+     */
+    public void noteServed( ImageDataKey completeKey, int length );
+
+    /**
+     * @return the original image for uid, exactly as its origin served it, if
+     *         we have stored it, or else null. Its timestamp is when we stored it.
+     */
+    public ImageData retrieveOriginal( String uid ) throws SsimException;
+
+    /**
+     * Stores the bytes of uid's original image, exactly as its origin served them.
+     * The store must not retain or release imageBytes.
+     */
+    public void storeOriginal( String uid, ImageBuffer imageBytes ) throws SsimException;
+
+    /**
+     * @return what we last recorded about uid's origin, or null if nothing
+     */
+    public OriginRecord originRecord( String uid ) throws SsimException;
+
+    public void storeOriginRecord( String uid, OriginRecord record ) throws SsimException;
+
     public void close() throws SsimException;
 }
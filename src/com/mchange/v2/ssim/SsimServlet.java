@@ -26,7 +26,11 @@ package com.mchange.v2.ssim;
 import jakarta.servlet.*;
 import jakarta.servlet.http.*;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
 import com.mchange.v1.io.InputStreamUtils;
 import com.mchange.v2.net.LocalHostManager;
 import com.mchange.v2.util.PatternReplacementMap;
@@ -41,8 +45,32 @@ public class SsimServlet extends HttpServlet
     final static int DFLT_MAX_HEIGHT      = 2000;
     final static int DFLT_CACHE_SIZE      = 50;  //50MB
     final static int DFLT_CULL_DELAY      = 300; //try to cull every five minutes
+    final static int DFLT_ACCESS_JOURNAL_INTERVAL = 60; //seconds
+    final static int DFLT_DECODED_CACHE_SIZE = 64; //64MB
+    final static int DFLT_MEMORY_TIER_SIZE   = 16; //16MB
 
     final static int DFLT_MAX_SIMULTANEOUS_SCALES = 3;
+    final static int DFLT_MAX_WORKERS             = 10;
+    final static int DFLT_MAX_QUEUE_DEPTH         = 50;
+    final static int DFLT_RETRY_AFTER             = 5;   // seconds
+
+    final static int DFLT_ORIGIN_CONNECT_TIMEOUT          = 5000;  // millis
+    final static int DFLT_ORIGIN_READ_TIMEOUT             = 20000; // millis
+    final static int DFLT_ORIGIN_MAX_CONNECTIONS_PER_HOST = 4;
+    final static int DFLT_FAILURE_TTL                     = 10;    // seconds
+
+    final static int SCALE_THREAD_KEEPALIVE = 60; // seconds
+
+    // Tomcat's (and some others') request attributes for sendfile support
+    final static String SENDFILE_SUPPORT_ATTR  = "org.apache.tomcat.sendfile.support";
+    final static String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    final static String SENDFILE_START_ATTR    = "org.apache.tomcat.sendfile.start";
+    final static String SENDFILE_END_ATTR      = "org.apache.tomcat.sendfile.end";
+
+    final static int COPY_BUFFER_SIZE       = 64 * 1024;
+    final static int MAX_POOLED_COPY_BUFFERS = 32;
+
+    final static BufferPool copyBufferPool = new BufferPool( COPY_BUFFER_SIZE, MAX_POOLED_COPY_BUFFERS );
 
     static LocalHostManager lhm;
 
@@ -50,7 +78,10 @@ public class SsimServlet extends HttpServlet
     File cacheDir;
 
     ImageFinder imf;
-    int scale_counter = 0;
+
+    // MT: thread-safe, bounds both the number of requests we work on 
+    //     off the container's Threads and the number we'll hold waiting
+    ThreadPoolExecutor scaleExecutor;
 
     PatternReplacementMap patternReplacementMap = null;
 
@@ -59,8 +90,15 @@ public class SsimServlet extends HttpServlet
     int        max_width               = DFLT_MAX_WIDTH;
     int        max_height              = DFLT_MAX_HEIGHT;
     int        max_simultaneous_scales = DFLT_MAX_SIMULTANEOUS_SCALES;
+    int        max_workers             = DFLT_MAX_WORKERS;
+    int        max_queue_depth         = DFLT_MAX_QUEUE_DEPTH;
+    int        retry_after             = DFLT_RETRY_AFTER;
     boolean    open_relay              = false;
     boolean    never_relay             = false;
+    boolean    use_sendfile            = true;
+    long       origin_max_age          = 0; //seconds
+    long       max_staleness           = 0; //seconds
+    long       failure_ttl             = DFLT_FAILURE_TTL; //seconds
     String     myDomain                = null;
     String[]   allowDomains            = null; //all lower case
     String     baseUrl                 = null;
@@ -83,7 +121,28 @@ public class SsimServlet extends HttpServlet
 	String baseResourcePathStr  = this.getInitParameter( "baseResourcePath" );
 	String cacheSizeStr         = this.getInitParameter( "cacheSize" );
 	String cullDelayStr         = this.getInitParameter( "cullDelay" );
+	String journalIntervalStr   = this.getInitParameter( "accessJournalInterval" );
+	String evictionPolicyStr    = this.getInitParameter( "evictionPolicy" );
 	String maxConcurrencyStr    = this.getInitParameter( "maxConcurrency" );
+	String useSendfileStr       = this.getInitParameter( "useSendfile" );
+	String maxWorkersStr        = this.getInitParameter( "maxWorkers" );
+	String maxQueueDepthStr     = this.getInitParameter( "maxQueueDepth" );
+	String retryAfterStr        = this.getInitParameter( "retryAfter" );
+	String decodedCacheSizeStr  = this.getInitParameter( "decodedCacheSize" );
+	String imageScalerStr       = this.getInitParameter( "imageScaler" );
+	String parallelThresholdStr = this.getInitParameter( "parallelScaleThreshold" );
+	String maxParallelismStr    = this.getInitParameter( "maxScaleParallelism" );
+	String imageIOUseCacheStr   = this.getInitParameter( "imageIOUseCache" );
+	String streamRendersStr     = this.getInitParameter( "streamRenders" );
+	String originMaxAgeStr      = this.getInitParameter( "originMaxAge" );
+	String staleWhileRevalStr   = this.getInitParameter( "staleWhileRevalidate" );
+	String connectTimeoutStr    = this.getInitParameter( "originConnectTimeout" );
+	String readTimeoutStr       = this.getInitParameter( "originReadTimeout" );
+	String maxPerHostStr        = this.getInitParameter( "originMaxConnectionsPerHost" );
+	String failureTtlStr        = this.getInitParameter( "failureTtl" );
+	String memoryTierSizeStr    = this.getInitParameter( "memoryTierSize" );
+	String memoryTierOffHeapStr = this.getInitParameter( "memoryTierOffHeap" );
+	String storeTypeStr         = this.getInitParameter( "storeType" );
 
 	if (browserMaxAgeStr != null && browserMaxAgeStr.length() > 0) {
 	    try { this.browser_max_age = Integer.parseInt( browserMaxAgeStr ); }
@@ -91,6 +150,16 @@ public class SsimServlet extends HttpServlet
 		{ throw new UnavailableException( "Could not parse browserMaxAge init param: " + browserMaxAgeStr ); }
 	}
 
+	if ( useSendfileStr != null )
+	    use_sendfile = Boolean.valueOf( useSendfileStr.trim() ).booleanValue();
+
+	// ImageIO's default is to buffer every stream it decodes or encodes in a temp file,
+	// which we don't need, since we hold whole images in memory anyway
+	boolean imageio_use_cache = false;
+	if ( imageIOUseCacheStr != null )
+	    imageio_use_cache = Boolean.valueOf( imageIOUseCacheStr.trim() ).booleanValue();
+	ImageIO.setUseCache( imageio_use_cache );
+
 	if ( browser_max_age > 0 ) 
 	    cacheControlHeaderValue = "max-age=" + browser_max_age + ", public";
 	else
@@ -171,6 +240,28 @@ public class SsimServlet extends HttpServlet
 	try { if (maxConcurrencyStr != null) max_simultaneous_scales = Integer.parseInt( maxConcurrencyStr ); }
 	catch ( NumberFormatException e )
 	    { throw new UnavailableException( "Could not parse maxConcurrency init param: " + maxConcurrencyStr ); }
+	if ( max_simultaneous_scales <= 0 )
+	    throw new UnavailableException( "maxConcurrency must be positive: " + max_simultaneous_scales );
+	try { if (maxWorkersStr != null) max_workers = Integer.parseInt( maxWorkersStr ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse maxWorkers init param: " + maxWorkersStr ); }
+	if ( max_workers <= 0 )
+	    throw new UnavailableException( "maxWorkers must be positive: " + max_workers );
+	try { if (maxQueueDepthStr != null) max_queue_depth = Integer.parseInt( maxQueueDepthStr ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse maxQueueDepth init param: " + maxQueueDepthStr ); }
+	try { if (retryAfterStr != null) retry_after = Integer.parseInt( retryAfterStr ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse retryAfter init param: " + retryAfterStr ); }
+
+	BlockingQueue scaleQueue = ( max_queue_depth > 0 ? (BlockingQueue) new ArrayBlockingQueue( max_queue_depth ) : (BlockingQueue) new SynchronousQueue() );
+	scaleExecutor = new ThreadPoolExecutor( max_workers, 
+						max_workers, 
+						SCALE_THREAD_KEEPALIVE, 
+						TimeUnit.SECONDS, 
+						scaleQueue,
+						new ScaleThreadFactory() );
+	scaleExecutor.allowCoreThreadTimeOut( true );
 
 	int cache_size = DFLT_CACHE_SIZE;
 	int cull_delay = DFLT_CULL_DELAY;
@@ -180,8 +271,145 @@ public class SsimServlet extends HttpServlet
 	try { if (cullDelayStr != null) cull_delay = Integer.parseInt( cullDelayStr ); }
 	catch ( NumberFormatException e )
 	    { throw new UnavailableException( "Could not parse cullDelay init param: " + cullDelayStr ); }
+	int journal_interval = DFLT_ACCESS_JOURNAL_INTERVAL;
+	try { if (journalIntervalStr != null) journal_interval = Integer.parseInt( journalIntervalStr.trim() ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse accessJournalInterval init param: " + journalIntervalStr ); }
+	
+	int decoded_cache_size = DFLT_DECODED_CACHE_SIZE;
+	try { if (decodedCacheSizeStr != null) decoded_cache_size = Integer.parseInt( decodedCacheSizeStr ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse decodedCacheSize init param: " + decodedCacheSizeStr ); }
 	
-	imf = new MyImageFinder( cache_size, cull_delay );
+	int parallel_threshold = SeparableFilterImageScaler.DFLT_PARALLEL_THRESHOLD;
+	try { if (parallelThresholdStr != null) parallel_threshold = Integer.parseInt( parallelThresholdStr ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse parallelScaleThreshold init param: " + parallelThresholdStr ); }
+
+	// by default, let scales borrow only the cores that maxConcurrency scales wouldn't already occupy
+	int max_parallelism = Math.max( 0, Runtime.getRuntime().availableProcessors() - max_simultaneous_scales );
+	try { if (maxParallelismStr != null) max_parallelism = Integer.parseInt( maxParallelismStr ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse maxScaleParallelism init param: " + maxParallelismStr ); }
+
+	ImageScaler scaler = createImageScaler( imageScalerStr, parallel_threshold, max_parallelism );
+
+	try { if (originMaxAgeStr != null) origin_max_age = Long.parseLong( originMaxAgeStr.trim() ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse originMaxAge init param: " + originMaxAgeStr ); }
+
+	try { if (staleWhileRevalStr != null) max_staleness = Long.parseLong( staleWhileRevalStr.trim() ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse staleWhileRevalidate init param: " + staleWhileRevalStr ); }
+
+	boolean stream_renders = false;
+	if ( streamRendersStr != null )
+	    stream_renders = Boolean.valueOf( streamRendersStr.trim() ).booleanValue();
+
+	int connect_timeout = DFLT_ORIGIN_CONNECT_TIMEOUT;
+	int read_timeout    = DFLT_ORIGIN_READ_TIMEOUT;
+	int max_per_host    = DFLT_ORIGIN_MAX_CONNECTIONS_PER_HOST;
+	try { if (connectTimeoutStr != null) connect_timeout = Integer.parseInt( connectTimeoutStr.trim() ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse originConnectTimeout init param: " + connectTimeoutStr ); }
+	try { if (readTimeoutStr != null) read_timeout = Integer.parseInt( readTimeoutStr.trim() ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse originReadTimeout init param: " + readTimeoutStr ); }
+	try { if (maxPerHostStr != null) max_per_host = Integer.parseInt( maxPerHostStr.trim() ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse originMaxConnectionsPerHost init param: " + maxPerHostStr ); }
+	if ( connect_timeout < 0 || read_timeout < 0 )
+	    throw new UnavailableException( "originConnectTimeout and originReadTimeout must not be negative." );
+
+	OriginFetcher fetcher = new OriginFetcher( connect_timeout, read_timeout, max_per_host );
+
+	try { if (failureTtlStr != null) failure_ttl = Long.parseLong( failureTtlStr.trim() ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse failureTtl init param: " + failureTtlStr ); }
+
+	int memory_tier_size = DFLT_MEMORY_TIER_SIZE;
+	try { if (memoryTierSizeStr != null) memory_tier_size = Integer.parseInt( memoryTierSizeStr.trim() ); }
+	catch ( NumberFormatException e )
+	    { throw new UnavailableException( "Could not parse memoryTierSize init param: " + memoryTierSizeStr ); }
+	boolean memory_tier_off_heap = false;
+	if ( memoryTierOffHeapStr != null )
+	    memory_tier_off_heap = Boolean.valueOf( memoryTierOffHeapStr.trim() ).booleanValue();
+
+	SsimPersistentStore store = createStore( storeTypeStr, cache_size, cull_delay, journal_interval, evictionPolicyStr );
+	if ( memory_tier_size > 0 && !(store instanceof OffHeapPersistentStore) ) // which is all memory already
+	    store = new MemoryTierPersistentStore( store, memory_tier_size * (1024L * 1024L), memory_tier_off_heap );
+
+	imf = new MyImageFinder( store, fetcher, scaler, max_simultaneous_scales, decoded_cache_size, stream_renders );
+    }
+
+    // "directory" (the default), "offheap", or "log"
+    private SsimPersistentStore createStore( String storeTypeStr, int cache_size, int cull_delay, int journal_interval, String evictionPolicyStr ) throws UnavailableException
+    {
+	String name = ( storeTypeStr == null ? "directory" : storeTypeStr.trim() );
+	if ( "directory".equalsIgnoreCase( name ) )
+	    return new DirectoryBasedPersistentStore( cacheDir, cache_size, cull_delay, journal_interval, createEvictionPolicy( evictionPolicyStr, cache_size * (1024L * 1024L) ) );
+	else if ( "offheap".equalsIgnoreCase( name ) )
+	    {
+		if ( cache_size <= 0 )
+		    throw new UnavailableException( "An offheap store requires a positive cacheSize: " + cache_size );
+		return new OffHeapPersistentStore( cache_size );
+	    }
+	else if ( "log".equalsIgnoreCase( name ) )
+	    {
+		try
+		    { return new LogStructuredPersistentStore( cacheDir, cache_size, cull_delay ); }
+		catch ( IOException e )
+		    {
+			e.printStackTrace();
+			throw new UnavailableException( "Could not open a log-structured store in " + cacheDir + ": " + e );
+		    }
+	    }
+	else
+	    throw new UnavailableException( "Unknown storeType: " + name );
+    }
+
+    // "lru" (the default), "lfu", "tinylfu", or "gdsf"
+    private static EvictionPolicy createEvictionPolicy( String evictionPolicyStr, long max_bytes ) throws UnavailableException
+    {
+	String name = ( evictionPolicyStr == null ? "lru" : evictionPolicyStr.trim() );
+	if ( "lru".equalsIgnoreCase( name ) )
+	    return new LruEvictionPolicy();
+	else if ( "lfu".equalsIgnoreCase( name ) )
+	    return new LfuEvictionPolicy();
+	else if ( "tinylfu".equalsIgnoreCase( name ) )
+	    return new TinyLfuEvictionPolicy( max_bytes );
+	else if ( "gdsf".equalsIgnoreCase( name ) )
+	    return new GdsfEvictionPolicy();
+	else
+	    throw new UnavailableException( "Unknown evictionPolicy: " + name );
+    }
+
+    // "lanczos" (the default), "box", "graphics2d", or the fully qualified
+    // name of an ImageScaler implementation with a public no-arg constructor
+    private static ImageScaler createImageScaler( String imageScalerStr, int parallel_threshold, int max_parallelism ) throws UnavailableException
+    {
+	String name = ( imageScalerStr == null ? "lanczos" : imageScalerStr.trim() );
+	if ( "lanczos".equalsIgnoreCase( name ) )
+	    return new SeparableFilterImageScaler( SeparableFilterImageScaler.LANCZOS3, parallel_threshold, max_parallelism );
+	else if ( "box".equalsIgnoreCase( name ) )
+	    return new SeparableFilterImageScaler( SeparableFilterImageScaler.BOX, parallel_threshold, max_parallelism );
+	else if ( "graphics2d".equalsIgnoreCase( name ) )
+	    return new Graphics2DImageScaler();
+	else
+	    {
+		try
+		    { return (ImageScaler) Class.forName( name ).getDeclaredConstructor().newInstance(); }
+		catch ( InvocationTargetException e ) // the constructor itself failed
+		    {
+			e.getCause().printStackTrace();
+			throw new UnavailableException( "Could not instantiate imageScaler: " + name + " [" + e.getCause() + ']' );
+		    }
+		catch ( Exception e )
+		    {
+			e.printStackTrace();
+			throw new UnavailableException( "Could not instantiate imageScaler: " + name + " [" + e + ']' );
+		    }
+	    }
     }
 
     public void doGet(HttpServletRequest req, HttpServletResponse res)
@@ -297,48 +525,295 @@ public class SsimServlet extends HttpServlet
 	// if preserveAspectRatioStr == null, this will go to false
 	preserve_aspect_ratio =  Boolean.valueOf( preserveAspectRatioStr ).booleanValue();
 
+	// cache hits are served right here, without waiting for anything
 	try
 	    {
-		ImageData data = null;
+		ImageData cached = imf.findCached( uid, mimeType, width, height, preserve_aspect_ratio );
+		if ( cached != null )
+		    {
+			serve( cached, req, res );
+			return;
+		    }
+	    }
+	catch ( ImageUnavailableException e ) // already logged, when it first occurred
+	    {
+		res.sendError( e.getStatus(), e.getMessage() );
+		return;
+	    }
+	catch ( SsimException e )
+	    {
+		e.printStackTrace();
+		throw new ServletException( e );
+	    }
+
+	final String  fUid                   = uid;
+	final String  fMimeType              = mimeType;
+	final int     f_width                = width;
+	final int     f_height               = height;
+	final boolean f_preserve_aspect_ratio = preserve_aspect_ratio;
+
+	if ( req.isAsyncSupported() )
+	    {
+		// we let go of the container's Thread while we find or scale the image, 
+		// and complete the response from one of our own
+		final AsyncContext ac = req.startAsync();
+		ac.setTimeout( 0 ); // we always complete() ourselves, see below
+		Runnable findTask = new Runnable()
+		    {
+			public void run()
+			{
+			    HttpServletRequest  areq = (HttpServletRequest) ac.getRequest();
+			    HttpServletResponse ares = (HttpServletResponse) ac.getResponse();
+			    try
+				{ serve( imf.find( fUid, fMimeType, f_width, f_height, f_preserve_aspect_ratio ), areq, ares ); }
+			    catch ( ImageUnavailableException e )
+				{ attemptSendError( ares, e.getStatus(), e ); }
+			    catch ( Exception e )
+				{
+				    e.printStackTrace();
+				    attemptSendError( ares, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e );
+				}
+			    finally
+				{ ac.complete(); }
+			}
+		    };
 		try
-		    { 
-			enterScale();
-			data = imf.find( uid, mimeType, width, height, preserve_aspect_ratio ); 
+		    { scaleExecutor.execute( findTask ); }
+		catch ( RejectedExecutionException e )
+		    {
+			try { sendBusy( res ); }
+			finally { ac.complete(); }
+		    }
+	    }
+	else
+	    {
+		// no async support, so we have to tie up the container's Thread,
+		// but we still respect the bounds of our executor
+		Callable findTask = new Callable()
+		    {
+			public Object call() throws Exception
+			{ return imf.find( fUid, fMimeType, f_width, f_height, f_preserve_aspect_ratio ); }
+		    };
+		Future future;
+		try
+		    { future = scaleExecutor.submit( findTask ); }
+		catch ( RejectedExecutionException e )
+		    {
+			sendBusy( res );
+			return;
 		    }
-		finally
-		    { exitScale(); }
 
-		res.setHeader("Cache-Control", cacheControlHeaderValue);
-		res.setContentType( data.getMimeType() );
-		int cl = data.getContentLength();
-		if ( cl >= 0 )
-		    res.setContentLength( cl );
-		InputStream is = null;
 		try
+		    { serve( (ImageData) future.get(), req, res ); }
+		catch ( SsimException e )
 		    {
-			is = data.getInputStream();
-			OutputStream os = res.getOutputStream();
-			for (int b = is.read(); b >= 0; b = is.read())
-			    os.write( b );
-			os.flush();
+			e.printStackTrace();
+			throw new ServletException( e );
+		    }
+		catch ( InterruptedException e )
+		    {
+			e.printStackTrace();
+			releaseWhenDone( future ); // we won't serve it, but it may hold up others until released
+			throw new ServletException( e );
+		    }
+		catch ( ExecutionException e )
+		    {
+			Throwable cause = e.getCause();
+			if ( cause instanceof ImageUnavailableException )
+			    {
+				res.sendError( ((ImageUnavailableException) cause).getStatus(), cause.getMessage() );
+				return;
+			    }
+			cause.printStackTrace();
+			throw new ServletException( cause );
 		    }
-		finally
-		    { InputStreamUtils.attemptClose( is ); }
 	    }
-	catch ( InterruptedException e )
+    }
+
+    // if present, If-None-Match takes precedence over If-Modified-Since
+    private static boolean isNotModified( HttpServletRequest req, String etag, long timestamp )
+    {
+	String ifNoneMatch = req.getHeader( "If-None-Match" );
+	if ( ifNoneMatch != null )
+	    return etag != null && etagMatches( ifNoneMatch, etag );
+
+	long if_modified_since;
+	try { if_modified_since = req.getDateHeader( "If-Modified-Since" ); }
+	catch ( IllegalArgumentException e ) //unparsable date, just ignore it
+	    { return false; }
+
+	// HTTP dates have a resolution of seconds
+	return ( if_modified_since >= 0 && timestamp > 0 && (timestamp / 1000) <= (if_modified_since / 1000) );
+    }
+
+    // If-None-Match uses the weak comparison function
+    private static boolean etagMatches( String ifNoneMatch, String etag )
+    {
+	String[] candidates = ifNoneMatch.trim().split("\\s*,\\s*");
+	for (int i = 0; i < candidates.length; ++i)
 	    {
-		e.printStackTrace();
-		throw new ServletException( e );
+		String candidate = candidates[i];
+		if ( candidate.equals("*") )
+		    return true;
+		if ( candidate.startsWith("W/") )
+		    candidate = candidate.substring(2);
+		if ( candidate.equals( etag ) )
+		    return true;
 	    }
-	catch ( SsimException e )
+	return false;
+    }
+
+    // waits out the find, uninterruptibly, only to release what it found
+    private static void releaseWhenDone( Future future )
+    {
+	boolean interrupted = false;
+	try
 	    {
-		e.printStackTrace();
-		throw new ServletException( e );
+		while ( true )
+		    {
+			try
+			    {
+				((ImageData) future.get()).release();
+				return;
+			    }
+			catch ( InterruptedException e )
+			    { interrupted = true; }
+			catch ( ExecutionException e ) // nothing to release
+			    { return; }
+		    }
+	    }
+	finally
+	    {
+		if ( interrupted )
+		    Thread.currentThread().interrupt();
+	    }
+    }
+
+    private void sendBusy( HttpServletResponse res ) throws IOException
+    {
+	res.setHeader( "Retry-After", String.valueOf( retry_after ) );
+	res.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many images are waiting to be scaled. Please try again later." );
+    }
+
+    private static void attemptSendError( HttpServletResponse res, int sc, Exception e )
+    {
+	try
+	    {
+		if (! res.isCommitted() )
+		    res.sendError( sc, e.toString() );
+	    }
+	catch ( Exception e2 )
+	    { e2.printStackTrace(); }
+    }
+
+    private void serve( ImageData data, HttpServletRequest req, HttpServletResponse res ) throws IOException, SsimException
+    {
+	try
+	    { _serve( data, req, res ); }
+	finally
+	    { data.release(); } //buffers go back to their pool once the client has the bytes
+    }
+
+    private void _serve( ImageData data, HttpServletRequest req, HttpServletResponse res ) throws IOException, SsimException
+    {
+	if ( data instanceof AbstractImageFinder.StreamingImageData )
+	    {
+		serveStreaming( (AbstractImageFinder.StreamingImageData) data, res );
+		return;
+	    }
+
+	res.setHeader("Cache-Control", cacheControlHeaderValue);
+
+	String etag      = data.getETag();
+	long   timestamp = data.getTimestamp();
+	if ( etag != null )
+	    res.setHeader( "ETag", etag );
+	if ( timestamp > 0 )
+	    res.setDateHeader( "Last-Modified", timestamp );
+	if ( isNotModified( req, etag, timestamp ) )
+	    {
+		// the client already has these bytes, we never need to open the image
+		res.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+		return;
+	    }
+
+	res.setContentType( data.getMimeType() );
+	int cl = data.getContentLength();
+	if ( cl >= 0 )
+	    res.setContentLength( cl );
+
+	// only ask for the file if we'll use it, data may have to pin it for us
+	File file = ( cl >= 0 && use_sendfile && Boolean.TRUE.equals( req.getAttribute( SENDFILE_SUPPORT_ATTR ) ) ? data.getFile() : null );
+	if ( file != null )
+	    {
+		// the container will send the file itself after we return,
+		// without ever copying it through the Java heap
+		req.setAttribute( SENDFILE_FILENAME_ATTR, file.getCanonicalPath() );
+		req.setAttribute( SENDFILE_START_ATTR, Long.valueOf( 0 ) );
+		req.setAttribute( SENDFILE_END_ATTR, Long.valueOf( cl ) );
+		return;
+	    }
+
+	OutputStream os = res.getOutputStream();
+	FileChannel fc = data.getChannel();
+	if ( data instanceof ByteBufferImageData )
+	    ((ByteBufferImageData) data).writeTo( os );
+	else if ( fc != null )
+	    {
+		try
+		    {
+			WritableByteChannel wbc = Channels.newChannel( os );
+			long size = fc.size();
+			for (long pos = 0; pos < size; )
+			    {
+				long transferred = fc.transferTo( pos, size - pos, wbc );
+				if ( transferred <= 0 ) // file shrank out from under us?
+				    break;
+				pos += transferred;
+			    }
+		    }
+		finally
+		    { fc.close(); }
 	    }
+	else
+	    {
+		InputStream is = null;
+		byte[] buffer = copyBufferPool.checkout();
+		try
+		    {
+			is = data.getInputStream();
+			for (int n = is.read( buffer ); n >= 0; n = is.read( buffer ))
+			    os.write( buffer, 0, n );
+		    }
+		finally
+		    { 
+			InputStreamUtils.attemptClose( is ); 
+			copyBufferPool.checkin( buffer );
+		    }
+	    }
+	os.flush();
+    }
+
+    // a freshly scaled image, which we encode before we send it. the client can't
+    // already have it, so there are no conditionals. serve() releases it after.
+    private void serveStreaming( AbstractImageFinder.StreamingImageData data, HttpServletResponse res ) throws IOException, SsimException
+    {
+	data.encode();
+
+	res.setHeader("Cache-Control", cacheControlHeaderValue);
+	res.setHeader( "ETag", data.getETag() );
+	res.setDateHeader( "Last-Modified", data.getTimestamp() );
+	res.setContentType( data.getMimeType() );
+	res.setContentLength( data.getContentLength() );
+
+	OutputStream os = res.getOutputStream();
+	data.writeTo( os );
+	os.flush();
     }
 
     public void destroy()
     {
+	scaleExecutor.shutdown();
 	try
 	    { imf.close(); }
 	catch( SsimException e )
@@ -384,23 +859,29 @@ public class SsimServlet extends HttpServlet
 	return false;
     }
 
-    private synchronized void enterScale() throws InterruptedException
+    static class ScaleThreadFactory implements ThreadFactory
     {
-	while ( scale_counter == max_simultaneous_scales )
-	    this.wait();
-	++scale_counter;
-    }
+	int thread_count = 0;
 
-    private synchronized void exitScale()
-    {
-	--scale_counter;
-	this.notifyAll();
+	public synchronized Thread newThread( Runnable r )
+	{
+	    Thread t = new Thread( r, "SsimServlet.ScaleThread-" + (thread_count++) );
+	    t.setDaemon( true );
+	    return t;
+	}
     }
 
     class MyImageFinder extends AbstractImageFinder
     {
-	MyImageFinder( int max_size, int cull_delay )
-	{ super( new DirectoryBasedPersistentStore( cacheDir, max_size, cull_delay ) ); }
+	MyImageFinder( SsimPersistentStore store, OriginFetcher fetcher, ImageScaler scaler, int max_concurrency, int decoded_cache_size, boolean stream_renders )
+	{ 
+	    super( store, 
+		   fetcher,
+		   scaler,
+		   max_concurrency, 
+		   decoded_cache_size * (1024L * 1024L),
+		   stream_renders ); 
+	}
 
 	protected URL urlForUid( final String uid ) throws Exception
 	{
@@ -411,6 +892,15 @@ public class SsimServlet extends HttpServlet
 		return sc.getResource( uid );
 	}
 
+	protected long defaultOriginMaxAge( String uid )
+	{ return origin_max_age; }
+
+	protected long maxStaleness( String uid )
+	{ return max_staleness; }
+
+	protected long failureTtl( String uid, int status )
+	{ return failure_ttl; }
+
 	// we cache even unmodified images if they are not local
 	protected boolean cacheUnmodified( String uid ) throws Exception
 	{
@@ -26,13 +26,19 @@ package com.mchange.v2.ssim;
 import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
+import java.security.*;
 import javax.imageio.*;
+import javax.imageio.stream.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 
 public final class SsimUtils
 {
-    final static int GUESSED_COMPRESSION = 3;
+    // when we subsample while decoding, we keep at least this many
+    // source pixels per target pixel in each dimension, so that the
+    // final resample has something to work with
+    final static int MIN_OVERSAMPLING = 2;
 
     final static String PREFERRED_DEFAULT_MIME_TYPE = "image/jpeg";
 
@@ -169,28 +175,158 @@ public final class SsimUtils
 	
     }
 
-    static byte[] streamToScaledBytes( InputStream is, String outputMimeType, int scaled_width, int scaled_height )
+    /**
+     * @return the coarsest subsampling of a dimension of orig_size pixels that still leaves
+     *         MIN_OVERSAMPLING times target_size pixels, or 1 if no subsampling is possible
+     */
+    static int subsamplingFactor( int orig_size, int target_size )
+    {
+	if ( orig_size <= 0 || target_size <= 0 )
+	    return 1;
+	else
+	    return Math.max( 1, orig_size / ( target_size * MIN_OVERSAMPLING ) );
+    }
+
+    /**
+     * @return t, or the first of its causes, that is an ImageUnavailableException, or null if none is
+     */
+    static ImageUnavailableException findUnavailableCause( Throwable t )
+    {
+	for ( ; t != null; t = t.getCause() )
+	    {
+		if ( t instanceof ImageUnavailableException )
+		    return (ImageUnavailableException) t;
+	    }
+	return null;
+    }
+
+    /**
+     * Waits for a result, rethrowing whatever the task threw, rather than an ExecutionException.
+     */
+    static Object awaitResult( Future future ) throws Exception
+    {
+	try
+	    { return future.get(); }
+	catch ( ExecutionException e )
+	    {
+		Throwable cause = e.getCause();
+		if ( cause instanceof Exception )
+		    throw (Exception) cause;
+		else if ( cause instanceof Error )
+		    throw (Error) cause;
+		else
+		    throw e;
+	    }
+    }
+
+    /**
+     * @return the number of bytes of pixel data an image holds
+     */
+    static long pixelBytes( BufferedImage image )
+    {
+	DataBuffer db = image.getRaster().getDataBuffer();
+	return ((long) db.getSize()) * db.getNumBanks() * DataBuffer.getDataTypeSize( db.getDataType() ) / 8;
+    }
+
+    static ImageBuffer imageToBuffer( BufferedImage scaledImage, String outputMimeType )
 	throws SsimException, IOException
-    { return bufferedImageToScaledBytes( ImageIO.read( is ), outputMimeType, scaled_width, scaled_height ); }
+    {
+	ImageBuffer buffer = new ImageBuffer();
+	boolean ok = false;
+	try
+	    {
+		writeImage( scaledImage, outputMimeType, buffer );
+		ok = true;
+		return buffer;
+	    }
+	finally
+	    {
+		if (! ok )
+		    buffer.release();
+	    }
+    }
 
-    static byte[] bufferedImageToScaledBytes( BufferedImage originalImage, String outputMimeType, int scaled_width, int scaled_height )
+    /**
+     * Encodes image to os, flushing as the ImageWriter finishes with each part of its output.
+     * Does not close os.
+     */
+    static void writeImage( BufferedImage scaledImage, String outputMimeType, OutputStream os )
 	throws SsimException, IOException
     {
-	// System.err.println("Original Image Type: " + originalImage.getType());
-	int type = imageType( originalImage, outputMimeType );
-	BufferedImage scaledImage = new BufferedImage( scaled_width, scaled_height, type );
-	Graphics2D g2d = (Graphics2D) scaledImage.getGraphics();
-	g2d.drawImage( originalImage, 0, 0, scaled_width, scaled_height, null );
-	String informalName = informalNameFromMimeType( outputMimeType );
-	ByteArrayOutputStream bufferStream = new ByteArrayOutputStream( (scaled_width * scaled_height * 4) / GUESSED_COMPRESSION );
-	boolean success = informalName != null && ImageIO.write( scaledImage, informalName, bufferStream );
-	if (success)
-	    return bufferStream.toByteArray();
-	else
-	    throw new SsimException("Unable to write to output type: [ outputMimeType: " + outputMimeType +
-				    ", informalName: " + informalName + " ]");
+	ImageWriter writer = ImageCodecPool.checkoutWriter( outputMimeType, scaledImage );
+	if ( writer == null )
+	    throw new SsimException("Unable to write to output type: [ outputMimeType: " + outputMimeType + " ]");
+	try
+	    {
+		ImageOutputStream ios = ImageCodecPool.createImageOutputStream( os );
+		try
+		    {
+			writer.setOutput( ios );
+			writer.write( scaledImage );
+		    }
+		finally
+		    { ios.close(); } //flushes into os, but doesn't close it
+	    }
+	finally
+	    { ImageCodecPool.checkinWriter( outputMimeType, writer ); }
     }
 
+    static String strongETag( byte[] bytes )
+    {
+	try
+	    { return quotedHex( MessageDigest.getInstance( "MD5" ).digest( bytes ) ); }
+	catch ( NoSuchAlgorithmException e )
+	    {
+		e.printStackTrace();
+		throw new InternalError("MD5 not supported???");
+	    }
+    }
+
+    static String quotedHex( byte[] digest )
+    { return '"' + hex( digest ) + '"'; }
+
+    static String hex( byte[] digest )
+    {
+	StringBuffer sb = new StringBuffer( digest.length * 2 );
+	for (int i = 0, len = digest.length; i < len; ++i)
+	    {
+		int b = digest[i] & 0xFF;
+		if ( b < 0x10 )
+		    sb.append( '0' );
+		sb.append( Integer.toHexString( b ) );
+	    }
+	return sb.toString();
+    }
+
+    /**
+     * @return the max-age specified by a Cache-Control header, in seconds, 0 if
+     *         the header forbids caching without revalidation, or -1 if it says nothing
+     */
+    static long maxAge( String cacheControl )
+    {
+	if ( cacheControl == null )
+	    return -1;
+
+	long out = -1;
+	String[] directives = cacheControl.trim().toLowerCase().split("\\s*,\\s*");
+	for (int i = 0; i < directives.length; ++i)
+	    {
+		String directive = directives[i];
+		if ( directive.equals("no-cache") || directive.equals("no-store") )
+		    return 0;
+		else if ( directive.startsWith("max-age=") )
+		    {
+			try { out = Math.max( 0, Long.parseLong( unquote( directive.substring( "max-age=".length() ).trim() ) ) ); }
+			catch ( NumberFormatException e ) // a bad max-age means stale
+			    { return 0; }
+		    }
+	    }
+	return out;
+    }
+
+    private static String unquote( String s )
+    { return ( s.length() >= 2 && s.charAt(0) == '"' && s.charAt( s.length() - 1 ) == '"' ? s.substring( 1, s.length() - 1 ) : s ); }
+
     static String informalNameFromMimeType( String mimeType )
     {
 	if (mimeType.equals("image/gif"))
@@ -206,7 +342,7 @@ public final class SsimUtils
     }
 
     // this is very hackish trial & error stuff...
-    private static int imageType( BufferedImage origImage, String outputMimeType )
+    static int imageType( BufferedImage origImage, String outputMimeType )
     {
 	int origType = origImage.getType();
 	if (  origType > 0  && 
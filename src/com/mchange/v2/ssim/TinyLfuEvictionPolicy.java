@@ -0,0 +1,165 @@
+/*
+ * Distributed as part of ssim v.0.6.0
+ *
+ * Copyright (C) 2005 Machinery For Change, Inc.
+ *
+ * Author: Steve Waldman <swaldman@mchange.com>
+ *
+ * This package is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2, as 
+ * published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; see the file LICENSE.  If not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+package com.mchange.v2.ssim;
+
+import java.util.*;
+
+/**
+ * A "W-TinyLFU" policy. Newly stored images land in a small LRU window. Once
+ * the window outgrows its share of the budget, its least-recently-used image
+ * must earn its place in the main LRU region, by having been requested more
+ * often, recently, than the image it would displace there. Whichever of the two
+ * is less popular is evicted. Popularity is estimated by a FrequencySketch,
+ * which remembers images we no longer hold, so a burst of one-hit wonders
+ * passes through the window without flushing out what is steadily popular.
+ */
+final class TinyLfuEvictionPolicy implements EvictionPolicy
+{
+    // the window's share of the budget, one part in this many
+    final static int WINDOW_FRACTION = 100;
+
+    // for sizing the frequency sketch
+    final static int EXPECTED_ENTRY_SIZE = 16 * 1024;
+
+    final long window_max_bytes;
+    final long main_max_bytes;
+
+    FrequencySketch sketch;
+    LinkedHashMap   window       = new LinkedHashMap( 16, 0.75f, true ); // ImageDataKeys -> Longs, in access order
+    LinkedHashMap   main         = new LinkedHashMap( 16, 0.75f, true ); // ImageDataKeys -> Longs, in access order
+    long            window_bytes = 0;
+    long            main_bytes   = 0;
+
+    /**
+     * @param max_bytes the budget of the store we serve
+     */
+    TinyLfuEvictionPolicy( long max_bytes )
+    {
+	this.window_max_bytes = max_bytes / WINDOW_FRACTION;
+	this.main_max_bytes   = max_bytes - window_max_bytes;
+	this.sketch           = new FrequencySketch( (int) Math.min( Integer.MAX_VALUE, max_bytes / EXPECTED_ENTRY_SIZE ) );
+    }
+
+    public void stored( ImageDataKey key, long size )
+    {
+	sketch.increment( key.valueHash() );
+	Long old = (Long) main.get( key );
+	if ( old != null )
+	    {
+		main.put( key, Long.valueOf( size ) );
+		main_bytes += size - old.longValue();
+	    }
+	else
+	    {
+		old = (Long) window.put( key, Long.valueOf( size ) );
+		window_bytes += size - ( old == null ? 0 : old.longValue() );
+		overflow();
+	    }
+    }
+
+    // while main has room, images leaving the window needn't compete for a place
+    private void overflow()
+    {
+	while ( window_bytes > window_max_bytes )
+	    {
+		Map.Entry eldest = eldest( window );
+		Long size = (Long) eldest.getValue();
+		if ( main_bytes + size.longValue() > main_max_bytes )
+		    break;
+		remove( window, eldest );
+		main.put( eldest.getKey(), size );
+		main_bytes += size.longValue();
+	    }
+    }
+
+    public void accessed( ImageDataKey key, long size )
+    {
+	sketch.increment( key.valueHash() );
+	// get(...) moves it to the most-recently-used end
+	if ( main.get( key ) == null && window.get( key ) == null )
+	    stored( key, size );
+    }
+
+    public boolean contains( ImageDataKey key )
+    { return main.containsKey( key ) || window.containsKey( key ); }
+
+    public ImageDataKey evict()
+    {
+	Map.Entry candidate = ( window_bytes > window_max_bytes || main.isEmpty() ? eldest( window ) : null );
+	Map.Entry victim    = eldest( main );
+	if ( candidate == null && victim == null )
+	    return null;
+	else if ( candidate == null )
+	    return remove( main, victim );
+	else if ( victim == null )
+	    return remove( window, candidate );
+
+	ImageDataKey candidateKey = (ImageDataKey) candidate.getKey();
+	ImageDataKey victimKey    = (ImageDataKey) victim.getKey();
+	if ( sketch.frequency( candidateKey.valueHash() ) > sketch.frequency( victimKey.valueHash() ) )
+	    {
+		// the candidate is admitted, the victim goes
+		Long size = (Long) candidate.getValue();
+		remove( window, candidate );
+		main.put( candidateKey, size );
+		main_bytes += size.longValue();
+		return remove( main, victim );
+	    }
+	else
+	    return remove( window, candidate );
+    }
+
+    private static Map.Entry eldest( LinkedHashMap map )
+    {
+	Iterator ii = map.entrySet().iterator();
+	return ( ii.hasNext() ? (Map.Entry) ii.next() : null );
+    }
+
+    private ImageDataKey remove( LinkedHashMap map, Map.Entry entry )
+    {
+	ImageDataKey key = (ImageDataKey) entry.getKey();
+	long size = ((Long) entry.getValue()).longValue();
+	map.remove( key );
+	if ( map == main )
+	    main_bytes -= size;
+	else
+	    window_bytes -= size;
+	return key;
+    }
+
+    public long totalSize()
+    { return window_bytes + main_bytes; }
+
+    // roughly: main's eldest compete with the window's, but they go first if they lose
+    public List keysInEvictionOrder()
+    {
+	List out = new ArrayList( main.size() + window.size() );
+	out.addAll( main.keySet() );   // iterating doesn't reorder
+	out.addAll( window.keySet() );
+	return out;
+    }
+
+    public String getName()
+    { return "tinylfu"; }
+}